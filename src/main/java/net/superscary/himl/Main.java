@@ -1,14 +1,24 @@
 package net.superscary.himl;
 
+import net.superscary.himl.memory.MemoryFootprint;
 import net.superscary.himl.model.MLModel;
 import net.superscary.himl.model.MLModelFactory;
 import net.superscary.himl.parser.RecipeParser;
 import net.superscary.himl.trainer.Trainer;
+import net.superscary.himl.trainer.WarmStart;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public class Main {
+    // -Dhiml.footprint=exact for an exact (slower) memory walk
+    private static final MemoryFootprint.Mode FOOTPRINT_MODE =
+        "exact".equals(System.getProperty("himl.footprint")) ? MemoryFootprint.Mode.EXACT : MemoryFootprint.Mode.ESTIMATE;
+
     public static void main(String[] args) {
         try {
             // Create models with different learning rates
@@ -18,7 +28,16 @@ public class Main {
             // Create recipe parser and load recipes
             RecipeParser recipeParser = new RecipeParser(model1);
             System.out.println("Loading recipes...");
-            recipeParser.loadRecipes("recipes.json");
+            if (args.length > 0) {
+                // Recipe directories, datapacks or mod jars given on the command line
+                List<Path> sources = new ArrayList<>();
+                for (String arg : args) {
+                    sources.add(Paths.get(arg));
+                }
+                recipeParser.loadRecipeSources(sources);
+            } else {
+                recipeParser.loadRecipes("recipes.json");
+            }
             
             // Initialize base materials for both models
             System.out.println("Initializing base materials...");
@@ -27,8 +46,17 @@ public class Main {
                 model2.initializeBaseMaterial(material);
             }
             
+            // -Dhiml.warmStart=a_weights.json,b_weights.json@0.5 seeds weights learned on other packs
+            String warmStartSources = System.getProperty("himl.warmStart");
+            if (warmStartSources != null) {
+                WarmStart warmStart = new WarmStart();
+                warmStart.addSources(warmStartSources);
+                warmStart.seed(recipeParser.getBaseMaterials(), model1, model2).print();
+            }
+            
             // Create trainer and train models
             Trainer trainer = new Trainer(model1, model2, recipeParser);
+            trainer.footprint(FOOTPRINT_MODE).print();
             trainer.trainMultipleSessions(1000, 0.5);
             
             // Evaluate models
@@ -37,6 +65,7 @@ public class Main {
             
             // Save trained data
             trainer.saveTrainedData();
+            trainer.footprint(FOOTPRINT_MODE).print();
             
             // Test predictions
             System.out.println("\nTesting predictions for some recipes:");
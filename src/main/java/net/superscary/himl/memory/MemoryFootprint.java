@@ -0,0 +1,370 @@
+package net.superscary.himl.memory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Retained heap size of the parser and model data structures, per structure and per namespace.
+ * <p>
+ * Sizes follow the HotSpot object layout (object header, reference size and 8 byte alignment are taken
+ * from the running VM's compressed oops setting). JDK collections are sized from their known field
+ * layouts since their internals cannot be reflected into; {@code HashMap} table capacity is inferred from
+ * the size with the default growth policy. Our own classes are walked field by field.
+ * <ul>
+ * <li>{@link Mode#ESTIMATE} sizes a sample of each map's entries and extrapolates by namespace entry counts,
+ * so it stays cheap on large packs. Ids shared between structures are charged to each of them, so the
+ * total is an upper bound.</li>
+ * <li>{@link Mode#EXACT} walks every reachable object once (by identity), so strings and boxes shared between
+ * structures are only charged to the first structure that reaches them.</li>
+ * </ul>
+ */
+public class MemoryFootprint {
+    public enum Mode { ESTIMATE, EXACT }
+
+    private static final int SAMPLE_SIZE = 64;
+    private static final String UNATTRIBUTED = "(structure)";
+    private static final boolean COMPRESSED_OOPS = compressedOops();
+    private static final int REFERENCE = COMPRESSED_OOPS ? 4 : 8;
+    private static final int HEADER = COMPRESSED_OOPS ? 12 : 16;
+    private static final int ARRAY_HEADER = COMPRESSED_OOPS ? 16 : 24;
+
+    private final Mode mode;
+    private final Map<String, Long> byStructure = new LinkedHashMap<>();
+    private final Map<String, Long> byNamespace = new TreeMap<>();
+    private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public MemoryFootprint(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Charges a structure to the report. Maps keyed by item or material id and collections of ids are also
+     * split by the namespace of their keys; anything else only counts towards the structure.
+     * @param structure Name to report the structure under, e.g. {@code parser.recipes}
+     * @param value The structure itself
+     */
+    public void add(String structure, Object value) {
+        long total;
+        if (value instanceof Map) {
+            total = addMap(structure, (Map<?, ?>) value);
+        } else if (value instanceof Collection && !(value instanceof List)) {
+            total = addCollection(structure, (Collection<?>) value);
+        } else {
+            total = sizeOf(value);
+            byNamespace.merge(UNATTRIBUTED, total, Long::sum);
+        }
+        byStructure.merge(structure, total, Long::sum);
+    }
+
+    private long addMap(String structure, Map<?, ?> map) {
+        long overhead = shallowMap(map);
+        if (mode == Mode.EXACT) {
+            visited.add(map);
+            long total = overhead;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                long entrySize = entrySize(map) + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+                byNamespace.merge(namespace(entry.getKey()), entrySize, Long::sum);
+                total += entrySize;
+            }
+            byNamespace.merge(UNATTRIBUTED, overhead, Long::sum);
+            return total;
+        }
+
+        // Size a sample, then charge every namespace its entry count times the average
+        Map<String, Integer> counts = new HashMap<>();
+        long sampled = 0;
+        int sampleCount = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            counts.merge(namespace(entry.getKey()), 1, Integer::sum);
+            if (sampleCount < SAMPLE_SIZE) {
+                sampled += entrySize(map) + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+                sampleCount++;
+            }
+        }
+        return overhead + distribute(counts, sampleCount == 0 ? 0.0 : (double) sampled / sampleCount, overhead);
+    }
+
+    private long addCollection(String structure, Collection<?> collection) {
+        long overhead = shallowCollection(collection);
+        Map<String, Integer> counts = new HashMap<>();
+        long sampled = 0;
+        int sampleCount = 0;
+        if (mode == Mode.EXACT) {
+            visited.add(collection);
+        }
+        for (Object element : collection) {
+            long elementSize = collectionEntrySize(collection) + sizeOf(element);
+            if (mode == Mode.EXACT) {
+                byNamespace.merge(namespace(element), elementSize, Long::sum);
+                sampled += elementSize;
+            } else {
+                counts.merge(namespace(element), 1, Integer::sum);
+                if (sampleCount < SAMPLE_SIZE) {
+                    sampled += elementSize;
+                    sampleCount++;
+                }
+            }
+        }
+        if (mode == Mode.EXACT) {
+            byNamespace.merge(UNATTRIBUTED, overhead, Long::sum);
+            return overhead + sampled;
+        }
+        return overhead + distribute(counts, sampleCount == 0 ? 0.0 : (double) sampled / sampleCount, overhead);
+    }
+
+    private long distribute(Map<String, Integer> counts, double average, long overhead) {
+        long total = 0;
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            long bytes = Math.round(average * count.getValue());
+            byNamespace.merge(count.getKey(), bytes, Long::sum);
+            total += bytes;
+        }
+        byNamespace.merge(UNATTRIBUTED, overhead, Long::sum);
+        return total;
+    }
+
+    private static String namespace(Object key) {
+        if (key instanceof String) {
+            String id = (String) key;
+            int colon = id.indexOf(':');
+            return colon > 0 ? id.substring(0, colon) : UNATTRIBUTED;
+        }
+        return UNATTRIBUTED;
+    }
+
+    /**
+     * Deep size of a value. In exact mode objects already charged elsewhere count as 0.
+     */
+    private long sizeOf(Object value) {
+        if (value == null || isShared(value)) {
+            return 0;
+        }
+        if (mode == Mode.EXACT && !visited.add(value)) {
+            return 0;
+        }
+
+        if (value instanceof String) {
+            String string = (String) value;
+            // Compact strings: one byte per char unless something needs UTF-16
+            boolean latin1 = string.chars().allMatch(c -> c < 256);
+            return align(HEADER + REFERENCE + 4 + 2) + array(latin1 ? string.length() : 2L * string.length());
+        }
+        if (value instanceof Integer || value instanceof Float) {
+            return align(HEADER + 4);
+        }
+        if (value instanceof Double || value instanceof Long) {
+            return align(HEADER + 8);
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            long size = shallowMap(map);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                size += entrySize(map) + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            long size = shallowCollection(collection);
+            for (Object element : collection) {
+                size += collectionEntrySize(collection) + sizeOf(element);
+            }
+            return size;
+        }
+        if (value.getClass().isArray()) {
+            return arraySize(value);
+        }
+        return objectSize(value);
+    }
+
+    private static boolean isShared(Object value) {
+        // Boxes from the Integer cache are not retained by our structures
+        if (value instanceof Integer) {
+            int i = (Integer) value;
+            return i >= -128 && i <= 127;
+        }
+        return value instanceof Boolean || value instanceof Enum || value instanceof Class;
+    }
+
+    private long arraySize(Object array) {
+        Class<?> component = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+        if (!component.isPrimitive()) {
+            long size = align(ARRAY_HEADER + (long) REFERENCE * length);
+            for (int i = 0; i < length; i++) {
+                size += sizeOf(Array.get(array, i));
+            }
+            return size;
+        }
+        return align(ARRAY_HEADER + (long) primitiveSize(component) * length);
+    }
+
+    /**
+     * Our own classes: shallow size from the declared fields, then every referenced object.
+     */
+    private long objectSize(Object value) {
+        if (value.getClass().getName().startsWith("java.")) {
+            return align(HEADER + REFERENCE); // opaque JDK object, count a minimal shell
+        }
+        long shallow = HEADER;
+        List<Object> references = new ArrayList<>();
+        for (Class<?> type = value.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                if (field.getType().isPrimitive()) {
+                    shallow += primitiveSize(field.getType());
+                    continue;
+                }
+                shallow += REFERENCE;
+                try {
+                    field.setAccessible(true);
+                    references.add(field.get(value));
+                } catch (RuntimeException | IllegalAccessException e) {
+                    // Inaccessible field, only its reference is counted
+                }
+            }
+        }
+        long size = align(shallow);
+        for (Object reference : references) {
+            size += sizeOf(reference);
+        }
+        return size;
+    }
+
+    private static long shallowMap(Map<?, ?> map) {
+        if (map instanceof TreeMap) {
+            return align(HEADER + 5L * REFERENCE + 8);
+        }
+        long header = map instanceof LinkedHashMap ? align(HEADER + 8L * REFERENCE + 1 + 12) : align(HEADER + 6L * REFERENCE + 12);
+        return header + align(ARRAY_HEADER + (long) REFERENCE * tableCapacity(map.size()));
+    }
+
+    private static long entrySize(Map<?, ?> map) {
+        if (map instanceof TreeMap) {
+            return align(HEADER + 5L * REFERENCE + 1);
+        }
+        return map instanceof LinkedHashMap ? align(HEADER + 6L * REFERENCE + 4) : align(HEADER + 3L * REFERENCE + 4);
+    }
+
+    private static long shallowCollection(Collection<?> collection) {
+        if (collection instanceof HashSet) {
+            // A HashSet is a shell around a HashMap whose values are one shared sentinel
+            return align(HEADER + REFERENCE) + align(HEADER + 6L * REFERENCE + 12)
+                + align(ARRAY_HEADER + (long) REFERENCE * tableCapacity(collection.size()));
+        }
+        if (collection instanceof ArrayDeque) {
+            return align(HEADER + REFERENCE + 8) + align(ARRAY_HEADER + (long) REFERENCE * (collection.size() + 1));
+        }
+        return align(HEADER + REFERENCE + 8) + align(ARRAY_HEADER + (long) REFERENCE * collection.size());
+    }
+
+    private static long collectionEntrySize(Collection<?> collection) {
+        return collection instanceof HashSet ? align(HEADER + 3L * REFERENCE + 4) : 0;
+    }
+
+    private static int tableCapacity(int size) {
+        if (size == 0) {
+            return 0;
+        }
+        int capacity = 16;
+        while (size > capacity * 3 / 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static long array(long bytes) {
+        return align(ARRAY_HEADER + bytes);
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static boolean compressedOops() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean bean =
+                ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            return bean == null || Boolean.parseBoolean(bean.getVMOption("UseCompressedOops").getValue());
+        } catch (RuntimeException | LinkageError e) {
+            return true; // the default for heaps under 32 GB
+        }
+    }
+
+    /**
+     * Projected size of a {@code HashMap} that does not exist yet, for planning. Keys are assumed to be
+     * ids already held elsewhere, so only the map, its nodes and the values are counted.
+     * @param entries Number of entries
+     * @param valueBytes Retained size of one value, 0 for shared values
+     */
+    public static long estimateMapBytes(int entries, long valueBytes) {
+        return align(HEADER + 6L * REFERENCE + 12) + align(ARRAY_HEADER + (long) REFERENCE * tableCapacity(entries))
+            + entries * (align(HEADER + 3L * REFERENCE + 4) + valueBytes);
+    }
+
+    /**
+     * Projected shallow size of an object with the given fields.
+     */
+    public static long estimateObjectBytes(int references, int primitiveBytes) {
+        return align(HEADER + (long) references * REFERENCE + primitiveBytes);
+    }
+
+    /**
+     * Size of a boxed {@code Integer}, {@code Double} or other primitive wrapper holding {@code primitiveBytes}.
+     */
+    public static long boxBytes(int primitiveBytes) {
+        return align(HEADER + primitiveBytes);
+    }
+
+    public Map<String, Long> getBytesByStructure() {
+        return Collections.unmodifiableMap(byStructure);
+    }
+
+    public Map<String, Long> getBytesByNamespace() {
+        return Collections.unmodifiableMap(byNamespace);
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (long bytes : byStructure.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    public void print() {
+        System.out.printf("Memory footprint (%s): %s%n", mode.name().toLowerCase(Locale.ROOT), format(getTotalBytes()));
+        System.out.println("  By structure:");
+        byStructure.forEach((structure, bytes) -> System.out.printf("    %-28s %12s%n", structure, format(bytes)));
+        System.out.println("  By namespace:");
+        byNamespace.entrySet().stream()
+            .sorted(Map.Entry.comparingByValue((a, b) -> Long.compare(b, a)))  // Largest first
+            .forEach(entry -> System.out.printf("    %-28s %12s%n", entry.getKey(), format(entry.getValue())));
+    }
+
+    private static String format(long bytes) {
+        if (bytes >= 1L << 20) {
+            return String.format("%.1f MiB", bytes / (double) (1L << 20));
+        }
+        if (bytes >= 1L << 10) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        return bytes + " B";
+    }
+}
@@ -1,5 +1,7 @@
 package net.superscary.himl.model;
 
+import net.superscary.himl.memory.MemoryFootprint;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -51,6 +53,11 @@ public class AdamModel implements MLModel {
 
     @Override
     public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate) {
+        updateWeights(baseMaterials, complexity, error, learningRate, 1.0);
+    }
+
+    @Override
+    public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate, double sampleWeight) {
         // Validate error is within acceptable range
         if (Math.abs(error) > MAX_ERROR) {
             error = Math.signum(error) * MAX_ERROR;
@@ -75,7 +82,7 @@ public class AdamModel implements MLModel {
             }
             
             double currentWeight = weights.getOrDefault(material, 1.0);
-            double gradient = error * count;
+            double gradient = error * count * sampleWeight;
             
             // Update momentum and velocity
             double momentum = beta1 * momentumMap.get(material) + (1 - beta1) * gradient;
@@ -98,7 +105,7 @@ public class AdamModel implements MLModel {
         }
         
         // Update complexity weight
-        double complexityGradient = error * complexity;
+        double complexityGradient = error * complexity * sampleWeight;
         
         // Update momentum and velocity for complexity
         complexityMomentum = beta1 * complexityMomentum + (1 - beta1) * complexityGradient;
@@ -133,6 +140,28 @@ public class AdamModel implements MLModel {
             complexityWeight, complexityMomentum, complexityVelocity);
     }
 
+    @Override
+    public void addFootprint(MemoryFootprint footprint, String name) {
+        footprint.add(name + ".weights", weights);
+        footprint.add(name + ".momentum", momentumMap);
+        footprint.add(name + ".velocity", velocityMap);
+    }
+
+    @Override
+    public double getMaterialWeight(String material) {
+        return weights.getOrDefault(material, 1.0);
+    }
+
+    @Override
+    public boolean supportsParameters() {
+        return true;
+    }
+
+    @Override
+    public void setMaterialWeight(String material, double weight) {
+        weights.put(material, Math.max(0.1, Math.min(weight, 100.0)));
+    }
+
     public double getComplexityWeight() {
         return complexityWeight;
     }
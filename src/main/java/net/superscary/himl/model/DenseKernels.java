@@ -0,0 +1,112 @@
+package net.superscary.himl.model;
+
+/**
+ * Dense single precision matrix kernels over flat row-major {@code float[]} buffers.
+ * <p>
+ * Every matrix is given as an array plus the offset of its first element, so one parameter buffer can
+ * hold several matrices. The loops are tiled so the rows of both operands in use stay in L1 even when the
+ * matrices do not, and nothing allocates.
+ */
+final class DenseKernels {
+    private static final int BLOCK = 64;
+
+    private DenseKernels() {
+    }
+
+    /**
+     * {@code out = a x b^T} for {@code a} (rows x inner) and {@code b} (cols x inner), {@code out} (rows x cols).
+     */
+    static void multiplyTransposed(float[] a, int aOffset, int rows, int inner,
+                                   float[] b, int bOffset, int cols, float[] out, int outOffset) {
+        for (int r0 = 0; r0 < rows; r0 += BLOCK) {
+            int rEnd = Math.min(r0 + BLOCK, rows);
+            for (int c0 = 0; c0 < cols; c0 += BLOCK) {
+                int cEnd = Math.min(c0 + BLOCK, cols);
+                for (int k0 = 0; k0 < inner; k0 += BLOCK) {
+                    int kEnd = Math.min(k0 + BLOCK, inner);
+                    for (int r = r0; r < rEnd; r++) {
+                        int aRow = aOffset + r * inner;
+                        int outRow = outOffset + r * cols;
+                        for (int c = c0; c < cEnd; c++) {
+                            int bRow = bOffset + c * inner;
+                            // Two accumulators to break the add dependency chain
+                            float sum0 = k0 == 0 ? 0f : out[outRow + c];
+                            float sum1 = 0f;
+                            int k = k0;
+                            for (; k + 1 < kEnd; k += 2) {
+                                sum0 += a[aRow + k] * b[bRow + k];
+                                sum1 += a[aRow + k + 1] * b[bRow + k + 1];
+                            }
+                            if (k < kEnd) {
+                                sum0 += a[aRow + k] * b[bRow + k];
+                            }
+                            out[outRow + c] = sum0 + sum1;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@code out += a^T x b} for {@code a} (rows x m) and {@code b} (rows x n), {@code out} (m x n).
+     * Zero elements of {@code a} (inactive ReLU units) are skipped.
+     */
+    static void multiplyAccumulateTransposedA(float[] a, int aOffset, int rows, int m,
+                                              float[] b, int bOffset, int n, float[] out, int outOffset) {
+        for (int i0 = 0; i0 < m; i0 += BLOCK) {
+            int iEnd = Math.min(i0 + BLOCK, m);
+            for (int j0 = 0; j0 < n; j0 += BLOCK) {
+                int jEnd = Math.min(j0 + BLOCK, n);
+                for (int r = 0; r < rows; r++) {
+                    int aRow = aOffset + r * m;
+                    int bRow = bOffset + r * n;
+                    for (int i = i0; i < iEnd; i++) {
+                        float ai = a[aRow + i];
+                        if (ai == 0f) {
+                            continue;
+                        }
+                        int outRow = outOffset + i * n;
+                        for (int j = j0; j < jEnd; j++) {
+                            out[outRow + j] += ai * b[bRow + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@code out = a x b} for {@code a} (rows x inner) and {@code b} (inner x cols), {@code out} (rows x cols).
+     * Zero elements of {@code a} are skipped.
+     */
+    static void multiply(float[] a, int aOffset, int rows, int inner,
+                         float[] b, int bOffset, int cols, float[] out, int outOffset) {
+        for (int r = 0; r < rows; r++) {
+            int outRow = outOffset + r * cols;
+            for (int c = 0; c < cols; c++) {
+                out[outRow + c] = 0f;
+            }
+        }
+        for (int k0 = 0; k0 < inner; k0 += BLOCK) {
+            int kEnd = Math.min(k0 + BLOCK, inner);
+            for (int c0 = 0; c0 < cols; c0 += BLOCK) {
+                int cEnd = Math.min(c0 + BLOCK, cols);
+                for (int r = 0; r < rows; r++) {
+                    int aRow = aOffset + r * inner;
+                    int outRow = outOffset + r * cols;
+                    for (int k = k0; k < kEnd; k++) {
+                        float ak = a[aRow + k];
+                        if (ak == 0f) {
+                            continue;
+                        }
+                        int bRow = bOffset + k * cols;
+                        for (int c = c0; c < cEnd; c++) {
+                            out[outRow + c] += ak * b[bRow + c];
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package net.superscary.himl.model;
 
+import net.superscary.himl.memory.MemoryFootprint;
+
 import java.util.HashMap;
 import java.util.Map;
 
@@ -35,6 +37,11 @@ public class GradientDescentModel implements MLModel {
 
     @Override
     public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate) {
+        updateWeights(baseMaterials, complexity, error, learningRate, 1.0);
+    }
+
+    @Override
+    public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate, double sampleWeight) {
         // Validate error is within acceptable range
         if (Math.abs(error) > MAX_ERROR) {
             error = Math.signum(error) * MAX_ERROR;
@@ -51,7 +58,7 @@ public class GradientDescentModel implements MLModel {
             int count = entry.getValue();
             
             double currentWeight = weights.getOrDefault(material, 1.0);
-            double gradient = error * count;
+            double gradient = error * count * sampleWeight;
             double newWeight = currentWeight + this.learningRate * gradient;
             
             // Ensure weights stay positive and reasonable
@@ -60,7 +67,7 @@ public class GradientDescentModel implements MLModel {
         }
         
         // Update complexity weight
-        double complexityGradient = error * complexity;
+        double complexityGradient = error * complexity * sampleWeight;
         double newComplexityWeight = complexityWeight + this.learningRate * complexityGradient;
         
         // Ensure complexity weight stays positive and reasonable
@@ -76,6 +83,26 @@ public class GradientDescentModel implements MLModel {
         System.out.printf("Complexity Weight: %.4f%n", complexityWeight);
     }
 
+    @Override
+    public void addFootprint(MemoryFootprint footprint, String name) {
+        footprint.add(name + ".weights", weights);
+    }
+
+    @Override
+    public double getMaterialWeight(String material) {
+        return weights.getOrDefault(material, 1.0);
+    }
+
+    @Override
+    public boolean supportsParameters() {
+        return true;
+    }
+
+    @Override
+    public void setMaterialWeight(String material, double weight) {
+        weights.put(material, Math.max(0.1, Math.min(weight, 100.0)));
+    }
+
     public double getComplexityWeight() {
         return complexityWeight;
     }
@@ -0,0 +1,356 @@
+package net.superscary.himl.model;
+
+import net.superscary.himl.memory.MemoryFootprint;
+
+import java.util.*;
+
+/**
+ * Full-batch limited-memory BFGS with projected bounds.
+ * <p>
+ * {@link #updateWeights} only records the sample and its target; the actual step is taken in
+ * {@link #endEpoch()} once the trainer has shown the model the whole pass. Each step minimises
+ * the mean squared error of the batch with a two-loop recursion over the last {@code HISTORY_SIZE}
+ * curvature pairs and a projected backtracking line search, keeping material weights in
+ * [0.1, 100] and the complexity weight in [0.1, 10] like the other models.
+ */
+public class LBFGSModel implements MLModel {
+    private static final int HISTORY_SIZE = 10;
+    private static final int MAX_LINE_SEARCH_STEPS = 20;
+    private static final double ARMIJO = 1e-4;
+    private static final double CURVATURE_EPSILON = 1e-10;
+    private static final double MIN_WEIGHT = 0.1;
+    private static final double MAX_WEIGHT = 100.0;
+    private static final double MIN_COMPLEXITY_WEIGHT = 0.1;
+    private static final double MAX_COMPLEXITY_WEIGHT = 10.0;
+
+    private final Map<String, Integer> materialIndex;
+    private double[] weights;
+    private int materialCount;
+    private double complexityWeight;
+    private final double learningRate;
+
+    private final List<Sample> batch;
+    private final Deque<double[]> sHistory;
+    private final Deque<double[]> yHistory;
+    private int iteration;
+
+    public LBFGSModel(double learningRate) {
+        this.materialIndex = new HashMap<>();
+        this.weights = new double[16];
+        this.complexityWeight = 1.0;
+        this.learningRate = learningRate;
+        this.batch = new ArrayList<>();
+        this.sHistory = new ArrayDeque<>();
+        this.yHistory = new ArrayDeque<>();
+    }
+
+    @Override
+    public void initializeBaseMaterial(String material) {
+        indexOf(material);
+    }
+
+    @Override
+    public double predictWeight(Map<String, Integer> baseMaterials, int complexity) {
+        double totalWeight = 0.0;
+        for (Map.Entry<String, Integer> entry : baseMaterials.entrySet()) {
+            Integer index = materialIndex.get(entry.getKey());
+            double weight = index != null ? weights[index] : 1.0;
+            totalWeight += weight * entry.getValue();
+        }
+        return totalWeight * (1.0 + complexityWeight * complexity);
+    }
+
+    @Override
+    public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate) {
+        updateWeights(baseMaterials, complexity, error, learningRate, 1.0);
+    }
+
+    @Override
+    public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate, double sampleWeight) {
+        // The trainer computes error against the current weights, so this recovers the target
+        double target = predictWeight(baseMaterials, complexity) + error;
+        int[] indices = new int[baseMaterials.size()];
+        double[] counts = new double[baseMaterials.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : baseMaterials.entrySet()) {
+            indices[i] = indexOf(entry.getKey());
+            counts[i] = entry.getValue();
+            i++;
+        }
+        batch.add(new Sample(indices, counts, complexity, target, sampleWeight));
+    }
+
+    @Override
+    public void endEpoch() {
+        endEpoch(Long.MAX_VALUE);
+    }
+
+    /**
+     * Every loss evaluation is a pass over the whole batch, so the deadline is checked before each one.
+     * If it passes, the step is dropped and the weights stay where they were.
+     */
+    @Override
+    public void endEpoch(long deadlineNanos) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (System.nanoTime() >= deadlineNanos) {
+            batch.clear();
+            return;
+        }
+
+        int n = materialCount + 1; // last slot is the complexity weight
+        double[] x = new double[n];
+        System.arraycopy(weights, 0, x, 0, materialCount);
+        x[materialCount] = complexityWeight;
+
+        double[] gradient = new double[n];
+        double loss = evaluate(x, gradient);
+        double[] direction = direction(x, gradient);
+
+        double directional = dot(gradient, direction);
+        if (!(directional < 0)) {
+            // Stale curvature, start over from steepest descent
+            sHistory.clear();
+            yHistory.clear();
+            direction = direction(x, gradient);
+            directional = dot(gradient, direction);
+            if (!(directional < 0)) {
+                batch.clear();
+                return; // projected gradient is zero, at a (bounded) optimum
+            }
+        }
+
+        double[] candidate = new double[n];
+        double[] candidateGradient = new double[n];
+        double step = 1.0;
+        boolean accepted = false;
+        for (int attempt = 0; attempt < MAX_LINE_SEARCH_STEPS; attempt++) {
+            if (System.nanoTime() >= deadlineNanos) {
+                // Out of time, not out of descent: keep the curvature history for the next step
+                batch.clear();
+                return;
+            }
+            for (int i = 0; i < n; i++) {
+                candidate[i] = project(i, x[i] + step * direction[i]);
+            }
+            double candidateLoss = evaluate(candidate, candidateGradient);
+            double decrease = 0.0;
+            for (int i = 0; i < n; i++) {
+                decrease += gradient[i] * (candidate[i] - x[i]);
+            }
+            if (candidateLoss <= loss + ARMIJO * decrease) {
+                accepted = true;
+                break;
+            }
+            step *= 0.5;
+        }
+
+        batch.clear();
+        iteration++;
+        if (!accepted) {
+            sHistory.clear();
+            yHistory.clear();
+            return;
+        }
+
+        double[] s = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            s[i] = candidate[i] - x[i];
+            y[i] = candidateGradient[i] - gradient[i];
+        }
+        if (dot(s, y) > CURVATURE_EPSILON) {
+            sHistory.addLast(s);
+            yHistory.addLast(y);
+            if (sHistory.size() > HISTORY_SIZE) {
+                sHistory.removeFirst();
+                yHistory.removeFirst();
+            }
+        }
+
+        System.arraycopy(candidate, 0, weights, 0, materialCount);
+        complexityWeight = candidate[materialCount];
+    }
+
+    /**
+     * Weighted mean squared error of the current batch at {@code x}, writing its gradient into {@code gradient}.
+     */
+    private double evaluate(double[] x, double[] gradient) {
+        Arrays.fill(gradient, 0.0);
+        int complexitySlot = materialCount;
+        double loss = 0.0;
+        double totalWeight = 0.0;
+        for (Sample sample : batch) {
+            double sum = 0.0;
+            for (int i = 0; i < sample.indices.length; i++) {
+                sum += x[sample.indices[i]] * sample.counts[i];
+            }
+            double scale = 1.0 + x[complexitySlot] * sample.complexity;
+            double residual = sum * scale - sample.target;
+            loss += 0.5 * sample.weight * residual * residual;
+            totalWeight += sample.weight;
+            residual *= sample.weight;
+
+            for (int i = 0; i < sample.indices.length; i++) {
+                gradient[sample.indices[i]] += residual * sample.counts[i] * scale;
+            }
+            gradient[complexitySlot] += residual * sum * sample.complexity;
+        }
+
+        double inverseSize = 1.0 / totalWeight;
+        for (int i = 0; i < gradient.length; i++) {
+            gradient[i] *= inverseSize;
+        }
+        return loss * inverseSize;
+    }
+
+    /**
+     * Two-loop recursion, restricted to the variables that are free to move: a variable sitting on a
+     * bound with the gradient pushing it outwards is held fixed.
+     */
+    private double[] direction(double[] x, double[] gradient) {
+        int n = gradient.length;
+        boolean[] fixed = new boolean[n];
+        double[] q = new double[n];
+        for (int i = 0; i < n; i++) {
+            fixed[i] = (x[i] <= lowerBound(i) && gradient[i] > 0) || (x[i] >= upperBound(i) && gradient[i] < 0);
+            q[i] = fixed[i] ? 0.0 : gradient[i];
+        }
+
+        if (sHistory.isEmpty()) {
+            // No curvature yet, take a learning rate sized steepest descent step
+            for (int i = 0; i < n; i++) {
+                q[i] = -learningRate * q[i];
+            }
+            return q;
+        }
+
+        double[][] s = sHistory.toArray(new double[0][]);
+        double[][] y = yHistory.toArray(new double[0][]);
+        double[] alpha = new double[s.length];
+        double[] rho = new double[s.length];
+        for (int k = s.length - 1; k >= 0; k--) {
+            rho[k] = 1.0 / dot(y[k], s[k]);
+            alpha[k] = rho[k] * dot(s[k], q);
+            for (int i = 0; i < n; i++) {
+                q[i] -= alpha[k] * y[k][i];
+            }
+        }
+
+        int last = s.length - 1;
+        double gamma = dot(s[last], y[last]) / dot(y[last], y[last]);
+        for (int i = 0; i < n; i++) {
+            q[i] *= gamma;
+        }
+
+        for (int k = 0; k < s.length; k++) {
+            double beta = rho[k] * dot(y[k], q);
+            for (int i = 0; i < n; i++) {
+                q[i] += s[k][i] * (alpha[k] - beta);
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            q[i] = fixed[i] ? 0.0 : -q[i];
+        }
+        return q;
+    }
+
+    private int indexOf(String material) {
+        Integer index = materialIndex.get(material);
+        if (index != null) {
+            return index;
+        }
+
+        if (materialCount == weights.length) {
+            weights = Arrays.copyOf(weights, weights.length * 2);
+        }
+        weights[materialCount] = 1.0;
+        materialIndex.put(material, materialCount);
+
+        // Curvature pairs no longer match the parameter vector
+        sHistory.clear();
+        yHistory.clear();
+        return materialCount++;
+    }
+
+    private double project(int i, double value) {
+        return Math.max(lowerBound(i), Math.min(value, upperBound(i)));
+    }
+
+    private double lowerBound(int i) {
+        return i == materialCount ? MIN_COMPLEXITY_WEIGHT : MIN_WEIGHT;
+    }
+
+    private double upperBound(int i) {
+        return i == materialCount ? MAX_COMPLEXITY_WEIGHT : MAX_WEIGHT;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void printWeights() {
+        System.out.println("Material Weights:");
+        materialIndex.entrySet().stream()
+            .sorted((a, b) -> Double.compare(weights[b.getValue()], weights[a.getValue()]))  // Sort by weight descending
+            .forEach(entry -> System.out.printf("  %s: %.4f%n", entry.getKey(), weights[entry.getValue()]));
+        System.out.printf("Complexity Weight: %.4f (L-BFGS iterations=%d, history=%d)%n",
+            complexityWeight, iteration, sHistory.size());
+    }
+
+    @Override
+    public void addFootprint(MemoryFootprint footprint, String name) {
+        footprint.add(name + ".materialIndex", materialIndex);
+        footprint.add(name + ".weights", weights);
+        footprint.add(name + ".batch", batch);
+        footprint.add(name + ".history", new Object[] {sHistory, yHistory});
+    }
+
+    @Override
+    public double getMaterialWeight(String material) {
+        Integer index = materialIndex.get(material);
+        return index != null ? weights[index] : 1.0;
+    }
+
+    @Override
+    public boolean supportsParameters() {
+        return true;
+    }
+
+    @Override
+    public void setMaterialWeight(String material, double weight) {
+        weights[indexOf(material)] = Math.max(MIN_WEIGHT, Math.min(weight, MAX_WEIGHT));
+    }
+
+    public double getComplexityWeight() {
+        return complexityWeight;
+    }
+
+    @Override
+    public void setComplexityWeight(double weight) {
+        this.complexityWeight = Math.max(MIN_COMPLEXITY_WEIGHT, Math.min(weight, MAX_COMPLEXITY_WEIGHT));
+    }
+
+    private static class Sample {
+        private final int[] indices;
+        private final double[] counts;
+        private final int complexity;
+        private final double target;
+        private final double weight;
+
+        Sample(int[] indices, double[] counts, int complexity, double target, double weight) {
+            this.indices = indices;
+            this.counts = counts;
+            this.complexity = complexity;
+            this.target = target;
+            this.weight = weight;
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package net.superscary.himl.model;
 
+import net.superscary.himl.memory.MemoryFootprint;
+
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 public interface MLModel {
+    // Bound on a single sample's error, the models in this package clip to it before scaling or stepping
+    double MAX_SAMPLE_ERROR = 10.0;
+    // Key of the complexity weight in getParameters
+    String COMPLEXITY_PARAMETER = "#complexity";
+
     /**
      * Initialize or update the model's parameters
      * @param material The base material to initialize
@@ -17,6 +26,84 @@ public interface MLModel {
      */
     double predictWeight(Map<String, Integer> baseMaterials, int recipeComplexity);
 
+    /**
+     * Predict the weights of many items at once
+     * @param batch Items packed as material id/count arrays
+     * @return The predicted weight of every item, in batch order
+     */
+    default double[] predictWeights(PackedBatch batch) {
+        double[] materialWeights = new double[batch.materialCount()];
+        for (int id = 0; id < materialWeights.length; id++) {
+            materialWeights[id] = getMaterialWeight(batch.material(id));
+        }
+        return batch.predict(materialWeights, getComplexityWeight());
+    }
+
+    /**
+     * Get the learned weight of a single base material
+     * @param material The base material
+     * @return Its weight, or the default weight if the material is unknown
+     */
+    default double getMaterialWeight(String material) {
+        return predictWeight(Map.of(material, 1), 0);
+    }
+
+    /**
+     * Whether the model's weights can be written from outside, with {@link #setMaterialWeight} and
+     * {@link #setParameters}. Snapshots, restores, replica sync and warm starts skip models that cannot.
+     * @return False by default
+     */
+    default boolean supportsParameters() {
+        return false;
+    }
+
+    /**
+     * Overwrite the weight of a single base material, e.g. with a value merged from another replica.
+     * Ignored unless {@link #supportsParameters()}.
+     * @param material The base material
+     * @param weight The new weight, clamped to the model's bounds
+     */
+    default void setMaterialWeight(String material, double weight) {
+    }
+
+    /**
+     * Every trainable parameter by name, enough for {@link #setParameters} to put the model back as it was.
+     * Used for best-epoch snapshots and to sync replicas. The default covers the linear form: each material's
+     * weight under its id, and the complexity weight under {@link #COMPLEXITY_PARAMETER}. Empty unless
+     * {@link #supportsParameters()}.
+     * @param materials The materials to include
+     * @return Parameter values by name
+     */
+    default Map<String, Double> getParameters(Collection<String> materials) {
+        if (!supportsParameters()) {
+            return new HashMap<>();
+        }
+        Map<String, Double> parameters = new HashMap<>(materials.size() * 2);
+        for (String material : materials) {
+            parameters.put(material, getMaterialWeight(material));
+        }
+        parameters.put(COMPLEXITY_PARAMETER, getComplexityWeight());
+        return parameters;
+    }
+
+    /**
+     * Writes parameters produced by {@link #getParameters} (or a subset of them) back into the model.
+     * Ignored unless {@link #supportsParameters()}.
+     * @param parameters Parameter values by name
+     */
+    default void setParameters(Map<String, Double> parameters) {
+        if (!supportsParameters()) {
+            return;
+        }
+        for (Map.Entry<String, Double> entry : parameters.entrySet()) {
+            if (entry.getKey().equals(COMPLEXITY_PARAMETER)) {
+                setComplexityWeight(entry.getValue());
+            } else {
+                setMaterialWeight(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
     /**
      * Updates the model weights based on the error between predicted and target values.
      * @param baseMaterials Map of base materials and their counts
@@ -26,6 +113,56 @@ public interface MLModel {
      */
     void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate);
 
+    /**
+     * Updates the model weights for a sample that stands for several identical training examples.
+     * The default clips the error to {@link #MAX_SAMPLE_ERROR} first and then scales it, like the models in
+     * this package; implementations that clip inside the single-sample update should override it.
+     * @param baseMaterials Map of base materials and their counts
+     * @param complexity Recipe complexity
+     * @param error Error between predicted and target values
+     * @param learningRate Learning rate for weight updates
+     * @param sampleWeight Number of examples this sample represents, the gradient is scaled by it
+     */
+    default void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate, double sampleWeight) {
+        double clipped = Math.max(-MAX_SAMPLE_ERROR, Math.min(error, MAX_SAMPLE_ERROR));
+        updateWeights(baseMaterials, complexity, clipped * sampleWeight, learningRate);
+    }
+
+    /**
+     * Called by the trainer after every full pass over the training data.
+     * Batch optimizers take their step here; per-sample optimizers can ignore it.
+     */
+    default void endEpoch() {
+    }
+
+    /**
+     * Like {@link #endEpoch()}, for budgeted training: work that would run past the deadline is abandoned,
+     * leaving the weights as they were. The default ignores the deadline.
+     * @param deadlineNanos A {@link System#nanoTime()} value
+     */
+    default void endEpoch(long deadlineNanos) {
+        endEpoch();
+    }
+
+    /**
+     * Whether predictions have the linear form sum(weight x count) x (1 + complexityWeight x complexity),
+     * so item prices can be updated from material weight changes alone
+     * @return True unless the model adds terms the material weights do not capture
+     */
+    default boolean isLinear() {
+        return true;
+    }
+
+    /**
+     * Charge the model's parameter and optimizer state to a footprint report.
+     * The default walks the whole model as one structure.
+     * @param footprint The report to add to
+     * @param name Prefix for the reported structures, e.g. {@code model1}
+     */
+    default void addFootprint(MemoryFootprint footprint, String name) {
+        footprint.add(name, this);
+    }
+
     /**
      * Print the current weights of the model in a human-readable format
      */
@@ -7,6 +7,10 @@ public class MLModelFactory {
                 return new GradientDescentModel(learningRate);
             case "adam":
                 return new AdamModel(learningRate);
+            case "lbfgs":
+                return new LBFGSModel(learningRate);
+            case "mlp":
+                return new MLPModel(learningRate);
             default:
                 throw new IllegalArgumentException("Unknown model type: " + type);
         }
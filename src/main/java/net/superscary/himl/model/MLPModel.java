@@ -0,0 +1,514 @@
+package net.superscary.himl.model;
+
+import net.superscary.himl.memory.MemoryFootprint;
+
+import java.util.*;
+
+/**
+ * The linear form plus a small neural correction for interactions between materials:
+ * <pre>
+ * prediction = sum(weight x count) x (1 + complexityWeight x complexity) + w2 . relu(W1 x features + b1) + b2
+ * features   = [sum log(1 + count) x embedding[material], log(1 + total count), log(1 + complexity), log(1 + materials)]
+ * </pre>
+ * Every material has an embedding next to its linear weight. Updates are buffered into mini-batches of
+ * {@link #BATCH_SIZE} examples, back-propagated through {@link DenseKernels} and applied with Adam (lazily
+ * for the material rows, so a step only touches the materials in its batch). All parameters, gradients
+ * and activations live in preallocated flat {@code float[]} buffers, so training and prediction do not
+ * allocate per example. Not thread-safe, predictions reuse the same buffers.
+ * <p>
+ * The correction starts at zero, so an untrained model predicts exactly like the linear ones.
+ */
+public class MLPModel implements MLModel {
+    private static final int EMBEDDING_SIZE = 8;
+    private static final int INPUT_SIZE = EMBEDDING_SIZE + 3;
+    private static final int HIDDEN_SIZE = 16;
+    private static final int BATCH_SIZE = 32;
+    // Per material row: the embedding, then the linear weight
+    private static final int ROW_SIZE = EMBEDDING_SIZE + 1;
+    private static final int LINEAR = EMBEDDING_SIZE;
+
+    // Dense parameter layout: W1 (hidden x input), b1, w2, b2, complexity weight
+    private static final int W1 = 0;
+    private static final int B1 = W1 + HIDDEN_SIZE * INPUT_SIZE;
+    private static final int W2 = B1 + HIDDEN_SIZE;
+    private static final int B2 = W2 + HIDDEN_SIZE;
+    private static final int COMPLEXITY = B2 + 1;
+    private static final int DENSE_SIZE = COMPLEXITY + 1;
+    // Parameter names beside the materials' linear weights, see getParameters
+    private static final String EMBEDDING_PARAMETER = "#embedding";
+    private static final String DENSE_PARAMETER = "#dense/";
+
+    private static final float BETA1 = 0.9f;
+    private static final float BETA2 = 0.999f;
+    private static final float ADAM_EPSILON = 1e-8f;
+    private static final double MAX_ERROR = 10.0;
+    private static final float MIN_WEIGHT = 0.1f;
+    private static final float MAX_WEIGHT = 100.0f;
+    private static final float MIN_COMPLEXITY_WEIGHT = 0.1f;
+    private static final float MAX_COMPLEXITY_WEIGHT = 10.0f;
+    // log(1 + n) for the counts recipes actually use, Math.log1p otherwise
+    private static final float[] LOG1P = new float[256];
+
+    static {
+        for (int n = 0; n < LOG1P.length; n++) {
+            LOG1P[n] = (float) Math.log1p(n);
+        }
+    }
+
+    private final float learningRate;
+    private final Random random;
+    private final Map<String, Integer> materialIndex;
+    private int materialCount;
+    private float[] table;
+    private float[] tableGrad;
+    private float[] tableMoment;
+    private float[] tableVelocity;
+    private int[] touchedRows;
+    private boolean[] touched;
+    private int touchedCount;
+
+    private final float[] dense;
+    private final float[] denseGrad;
+    private final float[] denseMoment;
+    private final float[] denseVelocity;
+    private int timestep;
+
+    // Activations of the current block of up to BATCH_SIZE rows
+    private final float[] inputs;
+    private final float[] inputGrad;
+    private final float[] hidden;
+    private final float[] hiddenGrad;
+    private final float[] outputs;
+    private final float[] outputGrad;
+    private final double[] linearSums;
+
+    // Examples waiting for the next step, with model material ids
+    private int[] pendingIds;
+    private int[] pendingCounts;
+    private final int[] pendingOffsets;
+    private final int[] pendingComplexity;
+    private final float[] pendingGrad;
+    private int pendingSize;
+
+    private int[] scratchIds;
+    private int[] scratchCounts;
+
+    public MLPModel(double learningRate) {
+        this.learningRate = (float) learningRate;
+        this.random = new Random(42);
+        this.materialIndex = new HashMap<>();
+        this.table = new float[16 * ROW_SIZE];
+        this.tableGrad = new float[table.length];
+        this.tableMoment = new float[table.length];
+        this.tableVelocity = new float[table.length];
+        this.touchedRows = new int[16];
+        this.touched = new boolean[16];
+
+        this.dense = new float[DENSE_SIZE];
+        this.denseGrad = new float[DENSE_SIZE];
+        this.denseMoment = new float[DENSE_SIZE];
+        this.denseVelocity = new float[DENSE_SIZE];
+        // He initialisation for the hidden layer; w2 and b2 start at zero so the correction does too
+        float scale = (float) Math.sqrt(2.0 / INPUT_SIZE);
+        for (int i = W1; i < B1; i++) {
+            dense[i] = (float) random.nextGaussian() * scale;
+        }
+        dense[COMPLEXITY] = 1.0f;
+
+        this.inputs = new float[BATCH_SIZE * INPUT_SIZE];
+        this.inputGrad = new float[BATCH_SIZE * INPUT_SIZE];
+        this.hidden = new float[BATCH_SIZE * HIDDEN_SIZE];
+        this.hiddenGrad = new float[BATCH_SIZE * HIDDEN_SIZE];
+        this.outputs = new float[BATCH_SIZE];
+        this.outputGrad = new float[BATCH_SIZE];
+        this.linearSums = new double[BATCH_SIZE];
+
+        this.pendingIds = new int[BATCH_SIZE * 8];
+        this.pendingCounts = new int[BATCH_SIZE * 8];
+        this.pendingOffsets = new int[BATCH_SIZE + 1];
+        this.pendingComplexity = new int[BATCH_SIZE];
+        this.pendingGrad = new float[BATCH_SIZE];
+        this.scratchIds = new int[16];
+        this.scratchCounts = new int[16];
+    }
+
+    @Override
+    public void initializeBaseMaterial(String material) {
+        indexOf(material);
+    }
+
+    @Override
+    public double predictWeight(Map<String, Integer> baseMaterials, int complexity) {
+        int size = toScratch(baseMaterials);
+        loadRow(0, scratchIds, scratchCounts, 0, size, complexity, null);
+        forward(1);
+        return prediction(0, complexity);
+    }
+
+    @Override
+    public double[] predictWeights(PackedBatch batch) {
+        int[] idMap = new int[batch.materialCount()];
+        for (int id = 0; id < idMap.length; id++) {
+            idMap[id] = materialIndex.getOrDefault(batch.material(id), -1);
+        }
+        int[] offsets = batch.offsets();
+        int[] complexities = batch.complexities();
+
+        double[] result = new double[batch.size()];
+        for (int start = 0; start < result.length; start += BATCH_SIZE) {
+            int rows = Math.min(BATCH_SIZE, result.length - start);
+            for (int r = 0; r < rows; r++) {
+                int item = start + r;
+                loadRow(r, batch.materialIds(), batch.counts(), offsets[item], offsets[item + 1], complexities[item], idMap);
+            }
+            forward(rows);
+            for (int r = 0; r < rows; r++) {
+                result[start + r] = prediction(r, complexities[start + r]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate) {
+        updateWeights(baseMaterials, complexity, error, learningRate, 1.0);
+    }
+
+    @Override
+    public void updateWeights(Map<String, Integer> baseMaterials, int complexity, double error, double learningRate, double sampleWeight) {
+        // Validate error is within acceptable range
+        if (Math.abs(error) > MAX_ERROR) {
+            error = Math.signum(error) * MAX_ERROR;
+        }
+
+        int start = pendingOffsets[pendingSize];
+        int end = start + baseMaterials.size();
+        if (end > pendingIds.length) {
+            pendingIds = Arrays.copyOf(pendingIds, Math.max(end, pendingIds.length * 2));
+            pendingCounts = Arrays.copyOf(pendingCounts, pendingIds.length);
+        }
+        int j = start;
+        for (Map.Entry<String, Integer> entry : baseMaterials.entrySet()) {
+            pendingIds[j] = indexOf(entry.getKey());
+            pendingCounts[j] = entry.getValue();
+            j++;
+        }
+        pendingComplexity[pendingSize] = complexity;
+        // Gradient of the squared error with respect to the prediction
+        pendingGrad[pendingSize] = (float) (-error * sampleWeight);
+        pendingOffsets[++pendingSize] = end;
+
+        if (pendingSize == BATCH_SIZE) {
+            step();
+        }
+    }
+
+    @Override
+    public void endEpoch() {
+        if (pendingSize > 0) {
+            step();
+        }
+    }
+
+    /**
+     * Fills row {@code r} of the input buffer from materials {@code ids[from .. to)}, mapped through
+     * {@code idMap} when it is given. Unknown materials (id -1) count with weight 1 and no embedding.
+     */
+    private void loadRow(int r, int[] ids, int[] counts, int from, int to, int complexity, int[] idMap) {
+        int x = r * INPUT_SIZE;
+        Arrays.fill(inputs, x, x + INPUT_SIZE, 0f);
+        double linear = 0.0;
+        int total = 0;
+        for (int j = from; j < to; j++) {
+            int id = idMap == null ? ids[j] : idMap[ids[j]];
+            int count = counts[j];
+            total += count;
+            if (id < 0) {
+                linear += count;
+                continue;
+            }
+            int row = id * ROW_SIZE;
+            linear += table[row + LINEAR] * (double) count;
+            float scale = log1p(count);
+            for (int e = 0; e < EMBEDDING_SIZE; e++) {
+                inputs[x + e] += scale * table[row + e];
+            }
+        }
+        inputs[x + EMBEDDING_SIZE] = log1p(total);
+        inputs[x + EMBEDDING_SIZE + 1] = log1p(complexity);
+        inputs[x + EMBEDDING_SIZE + 2] = log1p(to - from);
+        linearSums[r] = linear;
+    }
+
+    private void forward(int rows) {
+        DenseKernels.multiplyTransposed(inputs, 0, rows, INPUT_SIZE, dense, W1, HIDDEN_SIZE, hidden, 0);
+        for (int r = 0; r < rows; r++) {
+            int h = r * HIDDEN_SIZE;
+            for (int unit = 0; unit < HIDDEN_SIZE; unit++) {
+                float value = hidden[h + unit] + dense[B1 + unit];
+                hidden[h + unit] = value > 0f ? value : 0f;
+            }
+        }
+        DenseKernels.multiplyTransposed(hidden, 0, rows, HIDDEN_SIZE, dense, W2, 1, outputs, 0);
+        for (int r = 0; r < rows; r++) {
+            outputs[r] += dense[B2];
+        }
+    }
+
+    private double prediction(int r, int complexity) {
+        return linearSums[r] * (1.0 + dense[COMPLEXITY] * complexity) + outputs[r];
+    }
+
+    /**
+     * One Adam step on the mean squared error of the pending examples.
+     */
+    private void step() {
+        int rows = pendingSize;
+        for (int r = 0; r < rows; r++) {
+            loadRow(r, pendingIds, pendingCounts, pendingOffsets[r], pendingOffsets[r + 1], pendingComplexity[r], null);
+        }
+        forward(rows);
+
+        Arrays.fill(denseGrad, 0f);
+        float scale = 1f / rows;
+        double complexityGrad = 0.0;
+        for (int r = 0; r < rows; r++) {
+            float grad = pendingGrad[r] * scale;
+            int complexity = pendingComplexity[r];
+            outputGrad[r] = grad;
+            denseGrad[B2] += grad;
+            complexityGrad += grad * linearSums[r] * complexity;
+            float linearGrad = grad * (1f + dense[COMPLEXITY] * complexity);
+            for (int j = pendingOffsets[r]; j < pendingOffsets[r + 1]; j++) {
+                int id = pendingIds[j];
+                touch(id);
+                tableGrad[id * ROW_SIZE + LINEAR] += linearGrad * pendingCounts[j];
+            }
+        }
+        denseGrad[COMPLEXITY] = (float) complexityGrad;
+
+        // Output layer, then back through the ReLU
+        DenseKernels.multiplyAccumulateTransposedA(hidden, 0, rows, HIDDEN_SIZE, outputGrad, 0, 1, denseGrad, W2);
+        for (int r = 0; r < rows; r++) {
+            int h = r * HIDDEN_SIZE;
+            for (int unit = 0; unit < HIDDEN_SIZE; unit++) {
+                float grad = hidden[h + unit] > 0f ? outputGrad[r] * dense[W2 + unit] : 0f;
+                hiddenGrad[h + unit] = grad;
+                denseGrad[B1 + unit] += grad;
+            }
+        }
+
+        // Hidden layer and its inputs, scattered back onto the embeddings
+        DenseKernels.multiplyAccumulateTransposedA(hiddenGrad, 0, rows, HIDDEN_SIZE, inputs, 0, INPUT_SIZE, denseGrad, W1);
+        DenseKernels.multiply(hiddenGrad, 0, rows, HIDDEN_SIZE, dense, W1, INPUT_SIZE, inputGrad, 0);
+        for (int r = 0; r < rows; r++) {
+            int x = r * INPUT_SIZE;
+            for (int j = pendingOffsets[r]; j < pendingOffsets[r + 1]; j++) {
+                int row = pendingIds[j] * ROW_SIZE;
+                float countScale = log1p(pendingCounts[j]);
+                for (int e = 0; e < EMBEDDING_SIZE; e++) {
+                    tableGrad[row + e] += countScale * inputGrad[x + e];
+                }
+            }
+        }
+
+        timestep++;
+        float stepSize = (float) (learningRate * Math.sqrt(1.0 - Math.pow(BETA2, timestep)) / (1.0 - Math.pow(BETA1, timestep)));
+        for (int i = 0; i < DENSE_SIZE; i++) {
+            adam(dense, denseGrad, denseMoment, denseVelocity, i, stepSize);
+        }
+        dense[COMPLEXITY] = Math.max(MIN_COMPLEXITY_WEIGHT, Math.min(dense[COMPLEXITY], MAX_COMPLEXITY_WEIGHT));
+        for (int t = 0; t < touchedCount; t++) {
+            int id = touchedRows[t];
+            int row = id * ROW_SIZE;
+            for (int k = row; k < row + ROW_SIZE; k++) {
+                adam(table, tableGrad, tableMoment, tableVelocity, k, stepSize);
+                tableGrad[k] = 0f;
+            }
+            table[row + LINEAR] = Math.max(MIN_WEIGHT, Math.min(table[row + LINEAR], MAX_WEIGHT));
+            touched[id] = false;
+        }
+        touchedCount = 0;
+        pendingSize = 0;
+    }
+
+    private static float log1p(int n) {
+        return n >= 0 && n < LOG1P.length ? LOG1P[n] : (float) Math.log1p(n);
+    }
+
+    private static void adam(float[] parameters, float[] grads, float[] moments, float[] velocities, int i, float stepSize) {
+        float grad = grads[i];
+        moments[i] = BETA1 * moments[i] + (1f - BETA1) * grad;
+        velocities[i] = BETA2 * velocities[i] + (1f - BETA2) * grad * grad;
+        parameters[i] -= stepSize * moments[i] / ((float) Math.sqrt(velocities[i]) + ADAM_EPSILON);
+    }
+
+    private void touch(int id) {
+        if (!touched[id]) {
+            touched[id] = true;
+            touchedRows[touchedCount++] = id;
+        }
+    }
+
+    private int toScratch(Map<String, Integer> baseMaterials) {
+        if (baseMaterials.size() > scratchIds.length) {
+            scratchIds = new int[Math.max(baseMaterials.size(), scratchIds.length * 2)];
+            scratchCounts = new int[scratchIds.length];
+        }
+        int j = 0;
+        for (Map.Entry<String, Integer> entry : baseMaterials.entrySet()) {
+            scratchIds[j] = materialIndex.getOrDefault(entry.getKey(), -1);
+            scratchCounts[j] = entry.getValue();
+            j++;
+        }
+        return j;
+    }
+
+    private int indexOf(String material) {
+        Integer index = materialIndex.get(material);
+        if (index != null) {
+            return index;
+        }
+        int id = materialCount++;
+        if (materialCount * ROW_SIZE > table.length) {
+            int capacity = table.length * 2;
+            table = Arrays.copyOf(table, capacity);
+            tableGrad = Arrays.copyOf(tableGrad, capacity);
+            tableMoment = Arrays.copyOf(tableMoment, capacity);
+            tableVelocity = Arrays.copyOf(tableVelocity, capacity);
+            touchedRows = Arrays.copyOf(touchedRows, capacity / ROW_SIZE);
+            touched = Arrays.copyOf(touched, capacity / ROW_SIZE);
+        }
+        int row = id * ROW_SIZE;
+        for (int e = 0; e < EMBEDDING_SIZE; e++) {
+            table[row + e] = (float) (random.nextDouble() - 0.5) * 0.2f;
+        }
+        table[row + LINEAR] = 1.0f;
+        materialIndex.put(material, id);
+        return id;
+    }
+
+    /**
+     * The linear weight of a material plus the correction for that material alone.
+     */
+    private double singleMaterialWeight(int id) {
+        scratchIds[0] = id;
+        scratchCounts[0] = 1;
+        loadRow(0, scratchIds, scratchCounts, 0, 1, 0, null);
+        forward(1);
+        return prediction(0, 0);
+    }
+
+    @Override
+    public boolean isLinear() {
+        return false;
+    }
+
+    @Override
+    public void addFootprint(MemoryFootprint footprint, String name) {
+        footprint.add(name + ".materialIndex", materialIndex);
+        footprint.add(name + ".parameters", new Object[] {table, dense});
+        footprint.add(name + ".optimizer", new Object[] {tableGrad, tableMoment, tableVelocity, denseGrad, denseMoment, denseVelocity});
+        footprint.add(name + ".buffers", new Object[] {inputs, inputGrad, hidden, hiddenGrad, outputs, outputGrad, linearSums,
+            pendingIds, pendingCounts, pendingOffsets, pendingComplexity, pendingGrad, touchedRows, touched});
+    }
+
+    @Override
+    public void printWeights() {
+        System.out.println("Material Weights:");
+        Map<String, Double> weights = new HashMap<>();
+        materialIndex.forEach((material, id) -> weights.put(material, singleMaterialWeight(id)));
+        weights.entrySet().stream()
+            .sorted(Map.Entry.<String, Double>comparingByValue().reversed())  // Sort by weight descending
+            .forEach(entry -> System.out.printf("  %s: %.4f%n", entry.getKey(), entry.getValue()));
+        System.out.printf("Complexity Weight: %.4f (MLP hidden=%d, steps=%d, correction bias=%.4f)%n",
+            dense[COMPLEXITY], HIDDEN_SIZE, timestep, dense[B2]);
+    }
+
+    /**
+     * What the model predicts for one unit of the material on its own, correction included.
+     */
+    @Override
+    public double getMaterialWeight(String material) {
+        return singleMaterialWeight(materialIndex.getOrDefault(material, -1));
+    }
+
+    @Override
+    public boolean supportsParameters() {
+        return true;
+    }
+
+    /**
+     * Sets the linear weight so that {@link #getMaterialWeight} returns {@code weight} (within the linear bounds).
+     * The embedding, and so the material's contribution to mixed recipes, is left alone.
+     */
+    @Override
+    public void setMaterialWeight(String material, double weight) {
+        int id = indexOf(material);
+        int row = id * ROW_SIZE;
+        double correction = singleMaterialWeight(id) - table[row + LINEAR];
+        table[row + LINEAR] = (float) Math.max(MIN_WEIGHT, Math.min(weight - correction, MAX_WEIGHT));
+    }
+
+    /**
+     * The whole network: each material's raw linear weight under its id and its embedding under
+     * {@code #embedding<e>/<id>}, the dense layers under {@code #dense/<index>}, and the complexity weight.
+     * Materials the model has not seen yet are left out rather than registered.
+     */
+    @Override
+    public Map<String, Double> getParameters(Collection<String> materials) {
+        Map<String, Double> parameters = new HashMap<>(materials.size() * ROW_SIZE * 2 + DENSE_SIZE * 2);
+        for (String material : materials) {
+            Integer id = materialIndex.get(material);
+            if (id == null) {
+                continue;
+            }
+            int row = id * ROW_SIZE;
+            parameters.put(material, (double) table[row + LINEAR]);
+            for (int e = 0; e < EMBEDDING_SIZE; e++) {
+                parameters.put(EMBEDDING_PARAMETER + e + "/" + material, (double) table[row + e]);
+            }
+        }
+        for (int i = 0; i < COMPLEXITY; i++) {
+            parameters.put(DENSE_PARAMETER + i, (double) dense[i]);
+        }
+        parameters.put(COMPLEXITY_PARAMETER, (double) dense[COMPLEXITY]);
+        return parameters;
+    }
+
+    /**
+     * Restores parameters from {@link #getParameters}. Examples buffered for the next step were computed
+     * against the replaced parameters and are dropped.
+     */
+    @Override
+    public void setParameters(Map<String, Double> parameters) {
+        if (parameters.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Double> entry : parameters.entrySet()) {
+            String name = entry.getKey();
+            float value = entry.getValue().floatValue();
+            if (name.equals(COMPLEXITY_PARAMETER)) {
+                setComplexityWeight(value);
+            } else if (name.startsWith(DENSE_PARAMETER)) {
+                dense[Integer.parseInt(name.substring(DENSE_PARAMETER.length()))] = value;
+            } else if (name.startsWith(EMBEDDING_PARAMETER)) {
+                int slash = name.indexOf('/');
+                int e = Integer.parseInt(name.substring(EMBEDDING_PARAMETER.length(), slash));
+                table[indexOf(name.substring(slash + 1)) * ROW_SIZE + e] = value;
+            } else {
+                table[indexOf(name) * ROW_SIZE + LINEAR] = Math.max(MIN_WEIGHT, Math.min(value, MAX_WEIGHT));
+            }
+        }
+        pendingSize = 0;
+    }
+
+    public double getComplexityWeight() {
+        return dense[COMPLEXITY];
+    }
+
+    @Override
+    public void setComplexityWeight(double weight) {
+        dense[COMPLEXITY] = (float) Math.max(MIN_COMPLEXITY_WEIGHT, Math.min(weight, MAX_COMPLEXITY_WEIGHT));
+    }
+}
@@ -0,0 +1,152 @@
+package net.superscary.himl.model;
+
+import java.util.*;
+
+/**
+ * A batch of items packed into flat arrays for bulk prediction.
+ * <p>
+ * Item {@code i} consists of {@code materialIds[offsets[i] .. offsets[i + 1])} with the matching
+ * {@code counts}, where each id indexes {@code materials}. Building the batch once and pricing it
+ * against several models (or several weight snapshots) only resolves each distinct material once
+ * per call instead of once per item.
+ */
+public class PackedBatch {
+    private final String[] materials;
+    private final int[] offsets;
+    private final int[] materialIds;
+    private final int[] counts;
+    private final int[] complexities;
+
+    public PackedBatch(String[] materials, int[] offsets, int[] materialIds, int[] counts, int[] complexities) {
+        if (offsets.length != complexities.length + 1) {
+            throw new IllegalArgumentException("Expected " + (complexities.length + 1) + " offsets, got " + offsets.length);
+        }
+        if (materialIds.length != counts.length || offsets[offsets.length - 1] != materialIds.length) {
+            throw new IllegalArgumentException("Material ids, counts and offsets do not line up");
+        }
+        this.materials = materials;
+        this.offsets = offsets;
+        this.materialIds = materialIds;
+        this.counts = counts;
+        this.complexities = complexities;
+    }
+
+    public int size() {
+        return complexities.length;
+    }
+
+    public int materialCount() {
+        return materials.length;
+    }
+
+    public String material(int id) {
+        return materials[id];
+    }
+
+    // Raw arrays for models that run their own kernels over the batch, not copied
+    int[] offsets() {
+        return offsets;
+    }
+
+    int[] materialIds() {
+        return materialIds;
+    }
+
+    int[] counts() {
+        return counts;
+    }
+
+    int[] complexities() {
+        return complexities;
+    }
+
+    /**
+     * Scores every item as sum(weight x count) x (1 + complexityWeight x complexity).
+     * @param materialWeights Weight per material id
+     * @param complexityWeight The model's complexity weight
+     * @return One prediction per item, in batch order
+     */
+    public double[] predict(double[] materialWeights, double complexityWeight) {
+        double[] result = new double[complexities.length];
+        predict(materialWeights, complexityWeight, result);
+        return result;
+    }
+
+    /**
+     * Allocation-free variant of {@link #predict(double[], double)} writing into {@code result}.
+     */
+    public void predict(double[] materialWeights, double complexityWeight, double[] result) {
+        for (int item = 0; item < complexities.length; item++) {
+            int j = offsets[item];
+            int end = offsets[item + 1];
+
+            // Four independent accumulators so the gathers overlap instead of forming one add chain
+            double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+            for (; j + 3 < end; j += 4) {
+                sum0 += materialWeights[materialIds[j]] * counts[j];
+                sum1 += materialWeights[materialIds[j + 1]] * counts[j + 1];
+                sum2 += materialWeights[materialIds[j + 2]] * counts[j + 2];
+                sum3 += materialWeights[materialIds[j + 3]] * counts[j + 3];
+            }
+            for (; j < end; j++) {
+                sum0 += materialWeights[materialIds[j]] * counts[j];
+            }
+
+            result[item] = (sum0 + sum1 + sum2 + sum3) * (1.0 + complexityWeight * complexities[item]);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Packs items given as material count maps, interning material names as it goes.
+     */
+    public static class Builder {
+        private final Map<String, Integer> materialIndex = new LinkedHashMap<>();
+        private int[] offsets = new int[17];
+        private int[] materialIds = new int[64];
+        private int[] counts = new int[64];
+        private int[] complexities = new int[16];
+        private int size;
+
+        public Builder add(Map<String, Integer> baseMaterials, int complexity) {
+            int start = offsets[size];
+            int end = start + baseMaterials.size();
+            if (end > materialIds.length) {
+                int capacity = Math.max(end, materialIds.length * 2);
+                materialIds = Arrays.copyOf(materialIds, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            if (size == complexities.length) {
+                complexities = Arrays.copyOf(complexities, complexities.length * 2);
+                offsets = Arrays.copyOf(offsets, complexities.length + 1);
+            }
+
+            int j = start;
+            for (Map.Entry<String, Integer> entry : baseMaterials.entrySet()) {
+                Integer id = materialIndex.get(entry.getKey());
+                if (id == null) {
+                    id = materialIndex.size();
+                    materialIndex.put(entry.getKey(), id);
+                }
+                materialIds[j] = id;
+                counts[j] = entry.getValue();
+                j++;
+            }
+            complexities[size] = complexity;
+            offsets[++size] = end;
+            return this;
+        }
+
+        public PackedBatch build() {
+            int entries = offsets[size];
+            return new PackedBatch(materialIndex.keySet().toArray(new String[0]),
+                Arrays.copyOf(offsets, size + 1),
+                Arrays.copyOf(materialIds, entries),
+                Arrays.copyOf(counts, entries),
+                Arrays.copyOf(complexities, size));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package net.superscary.himl.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Compiled binary image of a parsed recipe graph.
+ * <p>
+ * Layout (big endian): magic, version, SHA-256 of the source JSON, a string table,
+ * then the ingredient arrays of every recipe variant, the selected variant per item,
+ * the base material set, the recipe complexities and the resolved base material
+ * vectors. Every item and material is stored as an index into the string table.
+ */
+class RecipeCache {
+    private static final int MAGIC = 0x48494D4C; // "HIML"
+    // Bump whenever the layout or the parser's output changes, the key only covers the source bytes
+    private static final int VERSION = 3;
+    private static final int HASH_LENGTH = 32;
+
+    final Map<String, List<Map<String, Integer>>> recipes = new HashMap<>();
+    final Map<String, Integer> selectedVariants = new HashMap<>();
+    final Set<String> baseMaterials = new HashSet<>();
+    final Map<String, Integer> recipeComplexity = new HashMap<>();
+    final Map<String, Map<String, Integer>> resolved = new HashMap<>();
+
+    static Path cacheFileFor(Path source) {
+        return source.resolveSibling(source.getFileName() + ".himlcache");
+    }
+
+    static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Maps the cache file and decodes it.
+     * @return The decoded graph, or null if the file is missing, corrupt or was built from other content
+     */
+    static RecipeCache read(Path cacheFile, byte[] sourceHash) throws IOException {
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 8 + HASH_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            byte[] storedHash = new byte[HASH_LENGTH];
+            buffer.get(storedHash);
+            if (!Arrays.equals(storedHash, sourceHash)) {
+                return null;
+            }
+
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            RecipeCache cache = new RecipeCache();
+            int itemCount = buffer.getInt();
+            for (int i = 0; i < itemCount; i++) {
+                String item = strings[buffer.getInt()];
+                List<Map<String, Integer>> variants = new ArrayList<>();
+                int variantCount = buffer.getInt();
+                for (int v = 0; v < variantCount; v++) {
+                    variants.add(readVector(buffer, strings));
+                }
+                cache.recipes.put(item, variants);
+            }
+            int selectedCount = buffer.getInt();
+            for (int i = 0; i < selectedCount; i++) {
+                cache.selectedVariants.put(strings[buffer.getInt()], buffer.getInt());
+            }
+            int baseCount = buffer.getInt();
+            for (int i = 0; i < baseCount; i++) {
+                cache.baseMaterials.add(strings[buffer.getInt()]);
+            }
+            int complexityCount = buffer.getInt();
+            for (int i = 0; i < complexityCount; i++) {
+                cache.recipeComplexity.put(strings[buffer.getInt()], buffer.getInt());
+            }
+            readVectors(buffer, strings, cache.resolved);
+            return cache;
+        } catch (RuntimeException e) {
+            // Truncated or otherwise unreadable image, fall back to parsing
+            System.err.println("Ignoring unreadable recipe cache " + cacheFile + ": " + e);
+            return null;
+        }
+    }
+
+    void write(Path cacheFile, byte[] sourceHash) throws IOException {
+        Map<String, Integer> index = new LinkedHashMap<>();
+        int recipesSize = 4;
+        for (Map.Entry<String, List<Map<String, Integer>>> entry : recipes.entrySet()) {
+            index.putIfAbsent(entry.getKey(), index.size());
+            recipesSize += 8;
+            for (Map<String, Integer> variant : entry.getValue()) {
+                variant.keySet().forEach(key -> index.putIfAbsent(key, index.size()));
+                recipesSize += 4 + 8 * variant.size();
+            }
+        }
+        baseMaterials.forEach(material -> index.putIfAbsent(material, index.size()));
+        recipeComplexity.keySet().forEach(item -> index.putIfAbsent(item, index.size()));
+        collectStrings(resolved, index);
+
+        List<byte[]> encoded = new ArrayList<>(index.size());
+        int size = 8 + HASH_LENGTH + 4;
+        for (String value : index.keySet()) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("Identifier too long for recipe cache: " + value);
+            }
+            encoded.add(bytes);
+            size += 2 + bytes.length;
+        }
+        size += recipesSize + 4 + 8 * selectedVariants.size() + 4 + 4 * baseMaterials.size() + 4 + 8 * recipeComplexity.size() + vectorsSize(resolved);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).put(sourceHash);
+        buffer.putInt(encoded.size());
+        for (byte[] bytes : encoded) {
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+        buffer.putInt(recipes.size());
+        for (Map.Entry<String, List<Map<String, Integer>>> entry : recipes.entrySet()) {
+            buffer.putInt(index.get(entry.getKey())).putInt(entry.getValue().size());
+            for (Map<String, Integer> variant : entry.getValue()) {
+                writeVector(buffer, index, variant);
+            }
+        }
+        buffer.putInt(selectedVariants.size());
+        selectedVariants.forEach((item, variant) -> buffer.putInt(index.get(item)).putInt(variant));
+        buffer.putInt(baseMaterials.size());
+        baseMaterials.forEach(material -> buffer.putInt(index.get(material)));
+        buffer.putInt(recipeComplexity.size());
+        recipeComplexity.forEach((item, complexity) -> buffer.putInt(index.get(item)).putInt(complexity));
+        writeVectors(buffer, index, resolved);
+        buffer.flip();
+
+        // Write to a sibling file first so a concurrent reader never maps a half written image. The name is
+        // unique, processes loading the same recipes (e.g. data-parallel workers) may all write the cache at once.
+        Path absolute = cacheFile.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void collectStrings(Map<String, Map<String, Integer>> vectors, Map<String, Integer> index) {
+        for (Map.Entry<String, Map<String, Integer>> entry : vectors.entrySet()) {
+            index.putIfAbsent(entry.getKey(), index.size());
+            entry.getValue().keySet().forEach(key -> index.putIfAbsent(key, index.size()));
+        }
+    }
+
+    private static int vectorsSize(Map<String, Map<String, Integer>> vectors) {
+        int size = 4;
+        for (Map<String, Integer> vector : vectors.values()) {
+            size += 8 + 8 * vector.size();
+        }
+        return size;
+    }
+
+    private static void writeVectors(ByteBuffer buffer, Map<String, Integer> index, Map<String, Map<String, Integer>> vectors) {
+        buffer.putInt(vectors.size());
+        for (Map.Entry<String, Map<String, Integer>> entry : vectors.entrySet()) {
+            buffer.putInt(index.get(entry.getKey()));
+            writeVector(buffer, index, entry.getValue());
+        }
+    }
+
+    private static void writeVector(ByteBuffer buffer, Map<String, Integer> index, Map<String, Integer> vector) {
+        buffer.putInt(vector.size());
+        for (Map.Entry<String, Integer> component : vector.entrySet()) {
+            buffer.putInt(index.get(component.getKey())).putInt(component.getValue());
+        }
+    }
+
+    private static void readVectors(ByteBuffer buffer, String[] strings, Map<String, Map<String, Integer>> vectors) {
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String key = strings[buffer.getInt()];
+            vectors.put(key, readVector(buffer, strings));
+        }
+    }
+
+    private static Map<String, Integer> readVector(ByteBuffer buffer, String[] strings) {
+        int length = buffer.getInt();
+        Map<String, Integer> vector = new HashMap<>(length * 2);
+        for (int j = 0; j < length; j++) {
+            vector.put(strings[buffer.getInt()], buffer.getInt());
+        }
+        return vector;
+    }
+}
@@ -1,31 +1,123 @@
 package net.superscary.himl.parser;
 
+import net.superscary.himl.memory.MemoryFootprint;
 import net.superscary.himl.model.MLModel;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 
 public class RecipeParser {
+    // Relative change in any leaf material weight that triggers a new recipe selection
+    private static final double SELECTION_TOLERANCE = 0.1;
+
     private final MLModel model;
-    private final Map<String, Recipe> recipes;
+    private final Map<String, List<Recipe>> recipes;
     private final Set<String> baseMaterials;
     private final Map<String, Integer> recipeComplexity;
+    private final Map<String, Map<String, Integer>> resolvedMaterials;
+    private Map<String, Map<String, Integer>> dependentItems;
+    private long resolutionVersion;
+    private final Map<String, Integer> selectedVariants;
+    private Map<String, Double> selectionWeights;
 
     public RecipeParser(MLModel model) {
         this.model = model;
         this.recipes = new HashMap<>();
         this.baseMaterials = new HashSet<>();
         this.recipeComplexity = new HashMap<>();
+        this.resolvedMaterials = new HashMap<>();
+        this.selectedVariants = new HashMap<>();
     }
 
     public void loadRecipes(String recipesFile) throws IOException {
+        loadRecipes(recipesFile, true);
+    }
+
+    /**
+     * Loads recipes from a JSON array file.
+     * @param recipesFile Path to the recipes JSON
+     * @param useCache Whether to reuse (and refresh) the compiled binary image stored next to the source file.
+     *                 The image holds exactly one file's recipes, so it is skipped when recipes are already loaded.
+     */
+    public void loadRecipes(String recipesFile, boolean useCache) throws IOException {
         //System.out.println("Loading recipes from: " + recipesFile);
-        String content = Files.readString(Paths.get(recipesFile));
+        Path source = Paths.get(recipesFile);
+        byte[] bytes = Files.readAllBytes(source);
+        if (!useCache || !isEmpty()) {
+            parseRecipes(new String(bytes, StandardCharsets.UTF_8));
+            return;
+        }
+
+        Path cacheFile = RecipeCache.cacheFileFor(source);
+        byte[] hash = RecipeCache.hash(bytes);
+        RecipeCache cache = RecipeCache.read(cacheFile, hash);
+        if (cache != null) {
+            System.out.println("Loaded compiled recipe graph from " + cacheFile);
+            applyCache(cache);
+            return;
+        }
+
+        parseRecipes(new String(bytes, StandardCharsets.UTF_8));
+        try {
+            buildCache().write(cacheFile, hash);
+        } catch (IOException e) {
+            System.err.println("Could not write recipe cache " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    public void loadRecipeSources(List<Path> sources) throws IOException {
+        loadRecipeSources(sources, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads recipes directly from recipe directories, datapack/mod roots and mod {@code .jar}/{@code .zip}
+     * files. Files are read and parsed on {@code threads} workers and merged here in path order.
+     * @param sources Directories, archives or single JSON files
+     * @param threads Number of reader threads
+     */
+    public void loadRecipeSources(List<Path> sources, int threads) throws IOException {
+        List<JsonObject> recipeObjs = RecipeSources.read(sources, threads);
+        //System.out.println("Found " + recipeObjs.size() + " recipes");
+        for (JsonObject recipeObj : recipeObjs) {
+            parseRecipe(recipeObj);
+        }
+        selectRecipes();
+    }
+
+    /**
+     * Loads a JSON array of recipes one element at a time, so only a single recipe's tree is held at once.
+     * No compiled cache is read or written.
+     * @param reader The recipes JSON
+     * @return Number of recipe records read
+     */
+    public int streamRecipes(Reader reader) throws IOException {
+        int records = 0;
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            JsonElement element = JsonParser.parseReader(jsonReader);
+            records++;
+            try {
+                parseRecipe(element.getAsJsonObject());
+            } catch (Exception e) {
+                System.err.println("Error parsing recipe: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        jsonReader.endArray();
+        selectRecipes();
+        return records;
+    }
+
+    private void parseRecipes(String content) {
         //System.out.println("File content length: " + content.length());
         
         Gson gson = new Gson();
@@ -44,6 +136,122 @@ public class RecipeParser {
         
         //System.out.println("Total recipes in map: " + recipes.size());
         //System.out.println("Base materials found: " + baseMaterials);
+        selectRecipes();
+    }
+
+    /**
+     * Re-runs the cheapest-variant selection if any uncrafted material's weight in the model has moved by more
+     * than {@code SELECTION_TOLERANCE} since the last selection. Cheap enough to call once per epoch.
+     * @return True if a different variant was picked for at least one item
+     */
+    public boolean refreshRecipeSelection() {
+        if (selectionWeights != null) {
+            boolean moved = false;
+            for (Map.Entry<String, Double> entry : selectionWeights.entrySet()) {
+                double previous = entry.getValue();
+                double current = model.getMaterialWeight(entry.getKey());
+                if (Math.abs(current - previous) > SELECTION_TOLERANCE * Math.abs(previous)) {
+                    moved = true;
+                    break;
+                }
+            }
+            if (!moved) {
+                return false;
+            }
+        }
+        return selectRecipes();
+    }
+
+    /**
+     * Picks the cheapest variant for every item with several recipes under the model's current material weights.
+     * @return True if the selection changed
+     */
+    private boolean selectRecipes() {
+        Map<String, List<Map<String, Integer>>> variants = new HashMap<>();
+        Map<String, Double> leafWeights = new HashMap<>();
+        recipes.forEach((itemId, itemRecipes) -> {
+            List<Map<String, Integer>> ingredientLists = new ArrayList<>(itemRecipes.size());
+            for (Recipe recipe : itemRecipes) {
+                ingredientLists.add(recipe.ingredients);
+                for (String ingredient : recipe.ingredients.keySet()) {
+                    if (!recipes.containsKey(ingredient)) {
+                        leafWeights.computeIfAbsent(ingredient, model::getMaterialWeight);
+                    }
+                }
+            }
+            variants.put(itemId, ingredientLists);
+        });
+
+        selectionWeights = leafWeights;
+        Map<String, Integer> selection = RecipeSelector.select(variants, leafWeights::get);
+        if (selection.equals(selectedVariants)) {
+            return false;
+        }
+        selectedVariants.clear();
+        selectedVariants.putAll(selection);
+        invalidateResolution();
+        return true;
+    }
+
+    private Recipe selectedRecipe(String itemId) {
+        List<Recipe> itemRecipes = recipes.get(itemId);
+        if (itemRecipes == null) {
+            return null;
+        }
+        return itemRecipes.get(selectedVariants.getOrDefault(itemId, 0));
+    }
+
+    // Selected recipe graph, for RecipeProfiler
+    Map<String, Integer> selectedIngredients(String itemId) {
+        Recipe recipe = selectedRecipe(itemId);
+        return recipe != null ? Collections.unmodifiableMap(recipe.getIngredients()) : null;
+    }
+
+    int variantCount(String itemId) {
+        return recipes.getOrDefault(itemId, Collections.emptyList()).size();
+    }
+
+    private boolean isEmpty() {
+        return recipes.isEmpty() && baseMaterials.isEmpty() && resolvedMaterials.isEmpty();
+    }
+
+    // Only called right after parsing a single file into an empty parser, so everything held came from that file
+    private RecipeCache buildCache() {
+        // Resolve every item up front so the image carries the full resolution state
+        for (String itemId : recipes.keySet()) {
+            resolveBaseMaterials(itemId);
+        }
+
+        RecipeCache cache = new RecipeCache();
+        recipes.forEach((itemId, itemRecipes) -> {
+            List<Map<String, Integer>> ingredientLists = new ArrayList<>(itemRecipes.size());
+            itemRecipes.forEach(recipe -> ingredientLists.add(recipe.ingredients));
+            cache.recipes.put(itemId, ingredientLists);
+        });
+        cache.selectedVariants.putAll(selectedVariants);
+        cache.baseMaterials.addAll(baseMaterials);
+        cache.recipeComplexity.putAll(recipeComplexity);
+        cache.resolved.putAll(resolvedMaterials);
+        return cache;
+    }
+
+    // Only called on an empty parser, the image replaces nothing
+    private void applyCache(RecipeCache cache) {
+        cache.recipes.forEach((itemId, ingredientLists) -> {
+            List<Recipe> itemRecipes = new ArrayList<>(ingredientLists.size());
+            for (Map<String, Integer> ingredients : ingredientLists) {
+                itemRecipes.add(new Recipe(itemId, ingredients));
+                ingredients.keySet().forEach(model::initializeBaseMaterial);
+            }
+            recipes.put(itemId, itemRecipes);
+        });
+        baseMaterials.addAll(cache.baseMaterials);
+        recipeComplexity.putAll(cache.recipeComplexity);
+        selectedVariants.putAll(cache.selectedVariants);
+        resolvedMaterials.putAll(cache.resolved);
+
+        // Cached resolutions stay valid unless the model's current weights pick other variants
+        selectRecipes();
     }
 
     private void calculateRecipeComplexity() {
@@ -58,7 +266,7 @@ public class RecipeParser {
         }
         visited.add(itemId);
 
-        Recipe recipe = recipes.get(itemId);
+        Recipe recipe = selectedRecipe(itemId);
         if (recipe == null) {
             return 0; // Base material
         }
@@ -116,8 +324,10 @@ public class RecipeParser {
             }
 
             if (!ingredients.isEmpty()) {
+                // Keep every variant, the cheapest one is picked once loading is done
                 Recipe recipe = new Recipe(itemName, ingredients);
-                recipes.put(itemName, recipe);
+                recipes.computeIfAbsent(itemName, k -> new ArrayList<>()).add(recipe);
+                invalidateResolution();
                 System.out.println("Added recipe for " + itemName + " with " + ingredients.size() + " ingredients: " + ingredients);
                 
                 // Initialize base materials in the model
@@ -143,9 +353,8 @@ public class RecipeParser {
             
             for (char c : row.toCharArray()) {
                 if (c != ' ') {
-                    JsonObject keyItem = key.getAsJsonObject(String.valueOf(c));
-                    if (keyItem != null) {
-                        String item = keyItem.get("item").getAsString();
+                    String item = ingredientId(key.get(String.valueOf(c)));
+                    if (item != null) {
                         ingredients.merge(item, 1, Integer::sum);
                         System.out.println("Added ingredient: " + item);
                     } else {
@@ -158,18 +367,53 @@ public class RecipeParser {
 
     private void parseShapelessRecipe(JsonArray ingredientsList, Map<String, Integer> ingredients) {
         for (JsonElement ingredientElement : ingredientsList) {
-            JsonObject ingredient = ingredientElement.getAsJsonObject();
-            String item = ingredient.get("item").getAsString();
-            ingredients.merge(item, 1, Integer::sum);
-            System.out.println("Added shapeless ingredient: " + item);
+            String item = ingredientId(ingredientElement);
+            if (item != null) {
+                ingredients.merge(item, 1, Integer::sum);
+                System.out.println("Added shapeless ingredient: " + item);
+            } else {
+                System.out.println("Warning: Unsupported ingredient: " + ingredientElement);
+            }
         }
     }
 
+    /**
+     * Reads one ingredient in any vanilla form: {@code {"item": id}}, {@code {"tag": id}}, the plain string
+     * ({@code "id"} or {@code "#tag"}) used since 1.21.2, or a list of alternatives, of which the first is taken.
+     * Tags are kept as {@code #namespace:tag} and priced like any other material.
+     * @return The ingredient id, or null if the element has none of these forms
+     */
+    private static String ingredientId(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonPrimitive()) {
+            return element.getAsString();
+        }
+        if (element.isJsonArray()) {
+            JsonArray alternatives = element.getAsJsonArray();
+            return alternatives.size() > 0 ? ingredientId(alternatives.get(0)) : null;
+        }
+        JsonObject ingredient = element.getAsJsonObject();
+        if (ingredient.has("item")) {
+            return ingredient.get("item").getAsString();
+        }
+        if (ingredient.has("tag")) {
+            return "#" + ingredient.get("tag").getAsString();
+        }
+        return null;
+    }
+
     public Map<String, Integer> resolveBaseMaterials(String itemId) {
-        //System.out.println("Resolving base materials for: " + itemId);
-        Map<String, Integer> result = resolveBaseMaterials(itemId, new HashSet<>());
-        //System.out.println("Base materials for " + itemId + ": " + result);
-        return result;
+        // The resolution of a top level item never changes once the recipes are loaded
+        Map<String, Integer> result = resolvedMaterials.get(itemId);
+        if (result == null) {
+            //System.out.println("Resolving base materials for: " + itemId);
+            result = resolveBaseMaterials(itemId, new HashSet<>());
+            //System.out.println("Base materials for " + itemId + ": " + result);
+            resolvedMaterials.put(itemId, result);
+        }
+        return new HashMap<>(result);
     }
 
     private Map<String, Integer> resolveBaseMaterials(String itemId, Set<String> visited) {
@@ -182,7 +426,7 @@ public class RecipeParser {
         }
         visited.add(itemId);
 
-        Recipe recipe = recipes.get(itemId);
+        Recipe recipe = selectedRecipe(itemId);
         if (recipe == null) {
             System.out.println("Found base material: " + itemId);
             Map<String, Integer> result = new HashMap<>();
@@ -206,6 +450,86 @@ public class RecipeParser {
         return baseMaterials;
     }
 
+    private void invalidateResolution() {
+        resolvedMaterials.clear();
+        dependentItems = null;
+        resolutionVersion++;
+    }
+
+    /**
+     * Incremented whenever resolved base materials may have changed (new recipes, a different variant selection).
+     * Item prices computed under an older version cannot be updated incrementally.
+     */
+    public long getResolutionVersion() {
+        return resolutionVersion;
+    }
+
+    /**
+     * Reverse of {@link #resolveBaseMaterials}: for one material, every item whose resolved recipe uses it,
+     * with the resolved count. The index is built on first use and dropped whenever resolutions change.
+     * @param material A base material
+     * @return Dependent items and their count of this material
+     */
+    public Map<String, Integer> getDependentItems(String material) {
+        return Collections.unmodifiableMap(dependentIndex().getOrDefault(material, Collections.emptyMap()));
+    }
+
+    private Map<String, Map<String, Integer>> dependentIndex() {
+        if (dependentItems == null) {
+            Map<String, Map<String, Integer>> index = new HashMap<>();
+            for (String itemId : recipes.keySet()) {
+                resolveBaseMaterials(itemId);
+                resolvedMaterials.get(itemId).forEach((material, count) ->
+                    index.computeIfAbsent(material, k -> new HashMap<>()).put(itemId, count));
+            }
+            dependentItems = index;
+        }
+        return dependentItems;
+    }
+
+    /**
+     * Reprices the items affected by a handful of material weight changes without touching unaffected items.
+     * Only valid for the linear model form, sum(weight x count) x (1 + complexityWeight x complexity), with an
+     * unchanged complexity weight; runs in time proportional to the number of (material, dependent item) pairs.
+     * @param materialDeltas New minus old weight, per changed material
+     * @param complexityWeight The model's complexity weight
+     * @param itemPrices Price per item before the change, left as is
+     * @return The items whose price changed, with their new price
+     */
+    public Map<String, Double> repriceAffected(Map<String, Double> materialDeltas, double complexityWeight,
+                                               Map<String, Double> itemPrices) {
+        Map<String, Map<String, Integer>> index = dependentIndex();
+        Map<String, Double> itemDeltas = new HashMap<>();
+        for (Map.Entry<String, Double> change : materialDeltas.entrySet()) {
+            double delta = change.getValue();
+            index.getOrDefault(change.getKey(), Collections.emptyMap())
+                .forEach((itemId, count) -> itemDeltas.merge(itemId, delta * count, Double::sum));
+        }
+
+        Map<String, Double> changed = new HashMap<>();
+        for (Map.Entry<String, Double> entry : itemDeltas.entrySet()) {
+            String itemId = entry.getKey();
+            double scale = 1.0 + complexityWeight * getRecipeComplexity(itemId);
+            changed.put(itemId, itemPrices.getOrDefault(itemId, 0.0) + entry.getValue() * scale);
+        }
+        return changed;
+    }
+
+    /**
+     * Charges the loaded recipes, selections and resolution caches to a footprint report.
+     * @param footprint The report to add to
+     */
+    public void addFootprint(MemoryFootprint footprint) {
+        footprint.add("parser.recipes", recipes);
+        footprint.add("parser.selectedVariants", selectedVariants);
+        footprint.add("parser.baseMaterials", baseMaterials);
+        footprint.add("parser.recipeComplexity", recipeComplexity);
+        footprint.add("parser.resolvedMaterials", resolvedMaterials);
+        if (dependentItems != null) {
+            footprint.add("parser.dependentItems", dependentItems);
+        }
+    }
+
     public Set<String> getBaseMaterials() {
         System.out.println("Current base materials: " + baseMaterials);
         return new HashSet<>(baseMaterials);
@@ -0,0 +1,479 @@
+package net.superscary.himl.parser;
+
+import net.superscary.himl.memory.MemoryFootprint;
+import net.superscary.himl.model.GradientDescentModel;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Profiles a recipe pack before training on it: size of the recipe graph, depth and fan-out, cycles,
+ * the largest resolved material vectors, and projected resolution time and training heap.
+ * <pre>
+ * RecipeProfiler &lt;recipes.json&gt; [top] [walkLimit]
+ * </pre>
+ * The recipes are streamed through {@link RecipeParser#streamRecipes}. Resolution is then replayed on int
+ * arrays, following {@code resolveBaseMaterials} step for step (one {@code visited} set per top level item,
+ * so a shared intermediate is expanded once and counted as its own entry when reached again). This gives
+ * every item's exact number of recursive calls and resolved entries without building a map. Packs with more
+ * than {@code walkLimit} items are replayed on a random sample and scaled up. A small sample of real
+ * resolutions calibrates the time per call.
+ */
+public class RecipeProfiler {
+    private static final int DEFAULT_TOP = 10;
+    private static final int DEFAULT_WALK_LIMIT = 100_000;
+    private static final int CALIBRATION_ITEMS = 200;
+    // resolveBaseMaterials recurses once per level, deeper chains risk a StackOverflowError on a default stack
+    private static final int DEEP_CHAIN = 1000;
+
+    private final RecipeParser parser;
+    private final int top;
+
+    // Items are nodes 0 .. itemCount - 1, uncrafted materials follow
+    private String[] nodes;
+    private int itemCount;
+    private int[][] edges;
+    private int[][] edgeCounts;
+
+    // Replay state
+    private int[] visitedStamp;
+    private int[] entryStamp;
+    private int stamp;
+    private long calls;
+    private int entries;
+
+    public RecipeProfiler(int top) {
+        this.parser = new RecipeParser(new GradientDescentModel(0.01));
+        this.top = top;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: RecipeProfiler <recipes.json> [top] [walkLimit]");
+            System.exit(1);
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TOP;
+        int walkLimit = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_WALK_LIMIT;
+        // The replay recurses as deep as the longest chain, give it room
+        Thread thread = new Thread(null, () -> {
+            try {
+                new RecipeProfiler(top).profile(Paths.get(args[0]), walkLimit);
+            } catch (IOException e) {
+                System.err.println("Error profiling recipes: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, "recipe-profiler", 1L << 30);
+        thread.start();
+    }
+
+    public void profile(Path recipesFile, int walkLimit) throws IOException {
+        // The parser logs every recipe and resolution step, keep that out of the report
+        PrintStream out = System.out;
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+
+        long loadStart = System.nanoTime();
+        int records;
+        System.setOut(quiet);
+        try (Reader reader = Files.newBufferedReader(recipesFile, StandardCharsets.UTF_8)) {
+            records = parser.streamRecipes(reader);
+        } finally {
+            System.setOut(out);
+        }
+        long loadNanos = System.nanoTime() - loadStart;
+        buildGraph();
+
+        System.out.printf("Recipe profile of %s (%.1f MiB, loaded in %.2fs)%n", recipesFile,
+            Files.size(recipesFile) / (double) (1L << 20), loadNanos / 1e9);
+        printCounts(records);
+        printFanOut();
+        int[] component = printCycles();
+        printDepth(component);
+
+        // Replay resolution for every item, or a sample of them
+        List<Integer> walked = new ArrayList<>();
+        for (int item = 0; item < itemCount; item++) {
+            walked.add(item);
+        }
+        if (walked.size() > walkLimit) {
+            Collections.shuffle(walked, new Random(1));
+            walked = walked.subList(0, walkLimit);
+        }
+        double scale = itemCount / (double) Math.max(1, walked.size());
+        visitedStamp = new int[nodes.length];
+        entryStamp = new int[nodes.length];
+        long[] itemCalls = new long[itemCount];
+        int[] itemEntries = new int[itemCount];
+        double[] itemTotals = new double[itemCount];
+        long totalCalls = 0;
+        long walkStart = System.nanoTime();
+        for (int item : walked) {
+            stamp++;
+            calls = 0;
+            entries = 0;
+            itemTotals[item] = replay(item);
+            itemCalls[item] = calls;
+            itemEntries[item] = entries;
+            totalCalls += calls;
+        }
+        long walkNanos = System.nanoTime() - walkStart;
+        printResolved(walked, itemEntries, itemTotals, scale, walkNanos);
+
+        double nanosPerCall = calibrate(walked, itemCalls, out, quiet);
+        printProjection(walked, itemEntries, scale, totalCalls, nanosPerCall);
+    }
+
+    private void buildGraph() {
+        List<String> items = new ArrayList<>(parser.getRecipes());
+        Collections.sort(items);
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> allNodes = new ArrayList<>(items);
+        for (String item : items) {
+            ids.put(item, ids.size());
+        }
+        itemCount = items.size();
+
+        edges = new int[itemCount][];
+        edgeCounts = new int[itemCount][];
+        for (int item = 0; item < itemCount; item++) {
+            Map<String, Integer> ingredients = parser.selectedIngredients(items.get(item));
+            edges[item] = new int[ingredients.size()];
+            edgeCounts[item] = new int[ingredients.size()];
+            int j = 0;
+            for (Map.Entry<String, Integer> ingredient : ingredients.entrySet()) {
+                Integer id = ids.get(ingredient.getKey());
+                if (id == null) {
+                    id = allNodes.size();
+                    ids.put(ingredient.getKey(), id);
+                    allNodes.add(ingredient.getKey());
+                }
+                edges[item][j] = id;
+                edgeCounts[item][j] = ingredient.getValue();
+                j++;
+            }
+        }
+        nodes = allNodes.toArray(new String[0]);
+    }
+
+    private void printCounts(int records) {
+        long variants = 0;
+        Map<String, Integer> namespaces = new HashMap<>();
+        for (int item = 0; item < itemCount; item++) {
+            variants += parser.variantCount(nodes[item]);
+            namespaces.merge(namespace(nodes[item]), 1, Integer::sum);
+        }
+        long edgeTotal = Arrays.stream(edges).mapToLong(e -> e.length).sum();
+
+        System.out.println("Counts:");
+        System.out.printf("  %-22s %,d%n", "recipe records", records);
+        System.out.printf("  %-22s %,d (%,d recipe variants)%n", "crafted items", itemCount, variants);
+        System.out.printf("  %-22s %,d%n", "uncrafted materials", nodes.length - itemCount);
+        System.out.printf("  %-22s %,d%n", "ingredient edges", edgeTotal);
+        System.out.printf("  %-22s %s%n", "items by namespace", topEntries(namespaces));
+    }
+
+    private void printFanOut() {
+        int[] fanOut = new int[itemCount];
+        int[] fanIn = new int[nodes.length];
+        for (int item = 0; item < itemCount; item++) {
+            fanOut[item] = edges[item].length;
+            for (int ingredient : edges[item]) {
+                fanIn[ingredient]++;
+            }
+        }
+        Map<String, Integer> mostUsed = new HashMap<>();
+        for (int node = 0; node < nodes.length; node++) {
+            mostUsed.put(nodes[node], fanIn[node]);
+        }
+        System.out.println("Fan-out (distinct ingredients per selected recipe):");
+        printDistribution(fanOut);
+        System.out.println("Fan-in (recipes using a material):");
+        printDistribution(fanIn);
+        System.out.printf("  most used: %s%n", topEntries(mostUsed));
+    }
+
+    /**
+     * Tarjan's algorithm over the item graph, without recursion.
+     * @return The strongly connected component of every item, numbered in reverse topological order
+     */
+    private int[] printCycles() {
+        int[] index = new int[itemCount];
+        int[] lowLink = new int[itemCount];
+        int[] component = new int[itemCount];
+        boolean[] onStack = new boolean[itemCount];
+        Arrays.fill(index, -1);
+        int[] stack = new int[itemCount];
+        int stackSize = 0;
+        int[] callStack = new int[itemCount];
+        int[] edgePosition = new int[itemCount];
+        int nextIndex = 0;
+        int components = 0;
+        List<int[]> cycles = new ArrayList<>();
+
+        for (int root = 0; root < itemCount; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            callStack[depth] = root;
+            index[root] = lowLink[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            edgePosition[root] = 0;
+
+            while (depth >= 0) {
+                int node = callStack[depth];
+                if (edgePosition[node] < edges[node].length) {
+                    int next = edges[node][edgePosition[node]++];
+                    if (next >= itemCount) {
+                        continue; // uncrafted, no outgoing edges
+                    }
+                    if (index[next] < 0) {
+                        index[next] = lowLink[next] = nextIndex++;
+                        stack[stackSize++] = next;
+                        onStack[next] = true;
+                        edgePosition[next] = 0;
+                        callStack[++depth] = next;
+                    } else if (onStack[next]) {
+                        lowLink[node] = Math.min(lowLink[node], index[next]);
+                    }
+                    continue;
+                }
+
+                if (lowLink[node] == index[node]) {
+                    int size = 0;
+                    int member;
+                    boolean selfLoop = false;
+                    do {
+                        member = stack[--stackSize];
+                        onStack[member] = false;
+                        component[member] = components;
+                        size++;
+                    } while (member != node);
+                    for (int next : edges[node]) {
+                        selfLoop |= next == node;
+                    }
+                    if (size > 1 || selfLoop) {
+                        cycles.add(new int[] {node, size});
+                    }
+                    components++;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int parent = callStack[depth];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                }
+            }
+        }
+
+        cycles.sort((a, b) -> Integer.compare(b[1], a[1]));
+        int cyclicItems = cycles.stream().mapToInt(c -> c[1]).sum();
+        System.out.printf("Cycles: %,d strongly connected components, %,d cyclic (%,d items)%n",
+            components, cycles.size(), cyclicItems);
+        for (int i = 0; i < Math.min(top, cycles.size()); i++) {
+            System.out.printf("  %,6d items, e.g. %s%n", cycles.get(i)[1], nodes[cycles.get(i)[0]]);
+        }
+        return component;
+    }
+
+    /**
+     * Longest ingredient chain below every item, on the component graph so cycles count once.
+     */
+    private void printDepth(int[] component) {
+        int componentCount = 0;
+        for (int c : component) {
+            componentCount = Math.max(componentCount, c + 1);
+        }
+        // Tarjan numbers components in reverse topological order: ingredients come first
+        List<List<Integer>> members = new ArrayList<>();
+        for (int c = 0; c < componentCount; c++) {
+            members.add(new ArrayList<>());
+        }
+        for (int item = 0; item < itemCount; item++) {
+            members.get(component[item]).add(item);
+        }
+        int[] componentDepth = new int[componentCount];
+        for (int c = 0; c < componentCount; c++) {
+            int depth = 1;
+            for (int item : members.get(c)) {
+                for (int next : edges[item]) {
+                    if (next < itemCount && component[next] != c) {
+                        depth = Math.max(depth, componentDepth[component[next]] + 1);
+                    }
+                }
+            }
+            componentDepth[c] = depth;
+        }
+
+        int[] depths = new int[itemCount];
+        int deepest = 0;
+        for (int item = 0; item < itemCount; item++) {
+            depths[item] = componentDepth[component[item]];
+            if (depths[item] > depths[deepest]) {
+                deepest = item;
+            }
+        }
+        System.out.println("Depth (longest chain down to uncrafted materials):");
+        printDistribution(depths);
+        if (itemCount > 0) {
+            System.out.printf("  deepest: %s (%d)%n", nodes[deepest], depths[deepest]);
+            if (depths[deepest] > DEEP_CHAIN) {
+                System.out.printf("  WARNING: chains deeper than %d may overflow the stack in resolveBaseMaterials, run with a larger -Xss%n", DEEP_CHAIN);
+            }
+        }
+    }
+
+    /**
+     * Replays {@code resolveBaseMaterials(node, visited)} for the current stamp.
+     * @return Sum of the resolved counts
+     */
+    private double replay(int node) {
+        calls++;
+        if (visitedStamp[node] == stamp || node >= itemCount) {
+            visitedStamp[node] = stamp;
+            addEntry(node);
+            return 1.0;
+        }
+        visitedStamp[node] = stamp;
+        double total = 0.0;
+        int[] next = edges[node];
+        for (int j = 0; j < next.length; j++) {
+            total += edgeCounts[node][j] * replay(next[j]);
+        }
+        return total;
+    }
+
+    private void addEntry(int node) {
+        if (entryStamp[node] != stamp) {
+            entryStamp[node] = stamp;
+            entries++;
+        }
+    }
+
+    private void printResolved(List<Integer> walked, int[] itemEntries, double[] itemTotals, double scale, long walkNanos) {
+        int[] sizes = new int[walked.size()];
+        int overflowing = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            int item = walked.get(i);
+            sizes[i] = itemEntries[item];
+            if (itemTotals[item] > Integer.MAX_VALUE) {
+                overflowing++;
+            }
+        }
+        System.out.printf("Resolved vectors (%s, replayed in %.2fs):%n",
+            scale > 1.0 ? String.format("sample of %,d items", walked.size()) : "all items", walkNanos / 1e9);
+        printDistribution(sizes);
+
+        List<Integer> largest = new ArrayList<>(walked);
+        largest.sort((a, b) -> Integer.compare(itemEntries[b], itemEntries[a]));
+        for (int i = 0; i < Math.min(top, largest.size()); i++) {
+            int item = largest.get(i);
+            System.out.printf("  %-40s %,6d materials, %,.0f units%n", nodes[item], itemEntries[item], itemTotals[item]);
+        }
+        if (overflowing > 0) {
+            System.out.printf("  WARNING: %,d items resolve to more than %,d units, their Integer counts overflow%n",
+                Math.round(overflowing * scale), Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Times real resolutions of a few items against their replayed call counts.
+     * @return Nanoseconds per recursive call, console output excluded
+     */
+    private double calibrate(List<Integer> walked, long[] itemCalls, PrintStream out, PrintStream quiet) {
+        List<Integer> sample = new ArrayList<>(walked);
+        Collections.shuffle(sample, new Random(2));
+        // Resolutions are memoised, so warm up on different items than the timed ones
+        int warmup = Math.min(CALIBRATION_ITEMS, sample.size() / 2);
+        int timed = Math.min(CALIBRATION_ITEMS, sample.size() - warmup);
+        long sampleCalls = 0;
+        long start = 0;
+        System.setOut(quiet);
+        try {
+            for (int i = 0; i < warmup + timed; i++) {
+                if (i == warmup) {
+                    start = System.nanoTime();
+                }
+                int item = sample.get(i);
+                parser.resolveBaseMaterials(nodes[item]);
+                if (i >= warmup) {
+                    sampleCalls += itemCalls[item];
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        return sampleCalls == 0 ? 0.0 : (System.nanoTime() - start) / (double) sampleCalls;
+    }
+
+    private void printProjection(List<Integer> walked, int[] itemEntries, double scale, long walkedCalls, double nanosPerCall) {
+        double totalCalls = walkedCalls * scale;
+        System.out.println("Projection for a full training run:");
+        System.out.printf("  %-22s %,.0f recursive calls, about %.2fs at %.0f ns/call (console output excluded)%n",
+            "resolution", totalCalls, totalCalls * nanosPerCall / 1e9, nanosPerCall);
+
+        // Resolved counts beyond the Integer cache are boxed separately
+        long resolvedBytes = 0;
+        long integerBytes = MemoryFootprint.boxBytes(4);
+        for (int item : walked) {
+            resolvedBytes += MemoryFootprint.estimateMapBytes(itemEntries[item], integerBytes);
+        }
+        resolvedBytes = Math.round(resolvedBytes * scale);
+
+        MemoryFootprint loaded = new MemoryFootprint(MemoryFootprint.Mode.ESTIMATE);
+        parser.addFootprint(loaded);
+        long recipeBytes = loaded.getTotalBytes() - loaded.getBytesByStructure().getOrDefault("parser.resolvedMaterials", 0L);
+        // TrainingExample: item, materials, complexity, target, multiplicity
+        long exampleBytes = itemCount * (MemoryFootprint.estimateObjectBytes(2, 4 + 8 + 4) + 4L);
+        // Main trains gradient descent (one weight map) and Adam (weights, momentum, velocity)
+        int materials = nodes.length;
+        long modelBytes = 4 * MemoryFootprint.estimateMapBytes(materials, MemoryFootprint.boxBytes(8));
+        // The parser memoises every resolution and the trainer keeps its own copy in the examples
+        long total = recipeBytes + 2 * resolvedBytes + exampleBytes + modelBytes;
+
+        printBytes("recipes", recipeBytes);
+        printBytes("resolved (x2)", 2 * resolvedBytes);
+        printBytes("training examples", exampleBytes);
+        printBytes("models", modelBytes);
+        printBytes("total", total);
+        // Twice the live set leaves the collector room to work
+        System.out.printf("  %-22s -Xmx%dm%n", "suggested heap", Math.max(64, (2 * total >> 20) + 1));
+    }
+
+    private static void printBytes(String name, long bytes) {
+        System.out.printf("  %-22s %,10.1f MiB%n", name, bytes / (double) (1L << 20));
+    }
+
+    private static void printDistribution(int[] values) {
+        if (values.length == 0) {
+            System.out.println("  (none)");
+            return;
+        }
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0.0);
+        System.out.printf("  min %d  p50 %d  p90 %d  p99 %d  max %d  mean %.2f%n",
+            sorted[0], percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+            sorted[sorted.length - 1], mean);
+    }
+
+    private static int percentile(int[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.floor(p * sorted.length))];
+    }
+
+    private String topEntries(Map<String, Integer> counts) {
+        StringBuilder result = new StringBuilder();
+        counts.entrySet().stream()
+            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+            .limit(top)
+            .forEach(entry -> result.append(result.length() > 0 ? ", " : "")
+                .append(entry.getKey()).append('=').append(entry.getValue()));
+        return result.toString();
+    }
+
+    private static String namespace(String id) {
+        int colon = id.indexOf(':');
+        return colon > 0 ? id.substring(0, colon) : "(none)";
+    }
+}
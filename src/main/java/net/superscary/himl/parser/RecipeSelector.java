@@ -0,0 +1,99 @@
+package net.superscary.himl.parser;
+
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Picks the cheapest recipe variant for every item in one pass over the recipe graph.
+ * <p>
+ * This is Knuth's generalisation of Dijkstra's algorithm to AND/OR graphs: the cost of a
+ * variant is the sum of count x cost over its ingredients, the cost of an item is the
+ * minimum over its variants, and uncrafted ingredients cost their material weight. Because
+ * every cost is a sum of positive terms, an item popped from the priority queue can never
+ * get cheaper later, so each variant is completed exactly once and the whole selection is
+ * O((items + ingredients) log items).
+ */
+class RecipeSelector {
+    private RecipeSelector() {
+    }
+
+    /**
+     * @param variants Every recipe variant per item, in file order
+     * @param leafWeight Weight of an ingredient that has no recipe
+     * @return The chosen variant index per item. Items only reachable through cycles keep variant 0
+     */
+    static Map<String, Integer> select(Map<String, List<Map<String, Integer>>> variants, ToDoubleFunction<String> leafWeight) {
+        int variantCount = 0;
+        for (List<Map<String, Integer>> itemVariants : variants.values()) {
+            variantCount += itemVariants.size();
+        }
+
+        String[] owner = new String[variantCount];
+        int[] localIndex = new int[variantCount];
+        int[] remaining = new int[variantCount];
+        double[] partialCost = new double[variantCount];
+        Map<String, List<int[]>> users = new HashMap<>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+
+        int id = 0;
+        for (Map.Entry<String, List<Map<String, Integer>>> entry : variants.entrySet()) {
+            List<Map<String, Integer>> itemVariants = entry.getValue();
+            for (int local = 0; local < itemVariants.size(); local++, id++) {
+                owner[id] = entry.getKey();
+                localIndex[id] = local;
+                for (Map.Entry<String, Integer> ingredient : itemVariants.get(local).entrySet()) {
+                    if (variants.containsKey(ingredient.getKey())) {
+                        remaining[id]++;
+                        users.computeIfAbsent(ingredient.getKey(), k -> new ArrayList<>())
+                            .add(new int[]{id, ingredient.getValue()});
+                    } else {
+                        partialCost[id] += ingredient.getValue() * leafWeight.applyAsDouble(ingredient.getKey());
+                    }
+                }
+                if (remaining[id] == 0) {
+                    queue.add(new Candidate(partialCost[id], id));
+                }
+            }
+        }
+
+        Map<String, Integer> selection = new HashMap<>();
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            String item = owner[candidate.variant];
+            if (selection.containsKey(item)) {
+                continue;
+            }
+            selection.put(item, localIndex[candidate.variant]);
+
+            for (int[] use : users.getOrDefault(item, Collections.emptyList())) {
+                int variant = use[0];
+                partialCost[variant] += use[1] * candidate.cost;
+                if (--remaining[variant] == 0 && !selection.containsKey(owner[variant])) {
+                    queue.add(new Candidate(partialCost[variant], variant));
+                }
+            }
+        }
+
+        for (String item : variants.keySet()) {
+            selection.putIfAbsent(item, 0);
+        }
+        return selection;
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        private final double cost;
+        private final int variant;
+
+        Candidate(double cost, int variant) {
+            this.cost = cost;
+            this.variant = variant;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            // Ties go to the earlier variant so the choice is stable across runs
+            int byCost = Double.compare(cost, other.cost);
+            return byCost != 0 ? byCost : Integer.compare(variant, other.variant);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package net.superscary.himl.parser;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads recipe JSON files from directory trees and mod jars/zips concurrently.
+ * <p>
+ * Files are read and parsed on a bounded pool; the results come back in a stable
+ * (sorted path) order so the caller can merge them serially and get the same
+ * recipe map on every run.
+ */
+class RecipeSources {
+    private static final String DEFAULT_NAMESPACE = "minecraft";
+
+    private RecipeSources() {
+    }
+
+    static List<JsonObject> read(List<Path> sources, int threads) throws IOException {
+        List<FileSystem> archives = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "recipe-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Path> files = new ArrayList<>();
+            for (Path source : sources) {
+                if (Files.isDirectory(source)) {
+                    files.addAll(listRecipeFiles(source));
+                } else if (isArchive(source)) {
+                    FileSystem archive = FileSystems.newFileSystem(source, (ClassLoader) null);
+                    archives.add(archive);
+                    for (Path root : archive.getRootDirectories()) {
+                        files.addAll(listRecipeFiles(root));
+                    }
+                } else {
+                    files.add(source);
+                }
+            }
+
+            List<Future<List<JsonObject>>> futures = new ArrayList<>(files.size());
+            for (Path file : files) {
+                futures.add(executor.submit(() -> readFile(file)));
+            }
+
+            List<JsonObject> recipes = new ArrayList<>(files.size());
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    recipes.addAll(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    System.err.println("Error reading recipe file " + files.get(i) + ": " + e.getCause().getMessage());
+                }
+            }
+            return recipes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading recipes", e);
+        } finally {
+            executor.shutdownNow();
+            for (FileSystem archive : archives) {
+                archive.close();
+            }
+        }
+    }
+
+    private static boolean isArchive(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".jar") || name.endsWith(".zip");
+    }
+
+    /**
+     * Lists the JSON files below a root. If the root is a datapack or mod root (it has a
+     * {@code data} folder) only files under {@code data/<namespace>/recipes/} are taken,
+     * otherwise the root is assumed to be a recipes folder already.
+     */
+    private static List<Path> listRecipeFiles(Path root) throws IOException {
+        boolean packRoot = Files.isDirectory(root.resolve("data"));
+        try (Stream<Path> walk = Files.walk(root)) {
+            return walk
+                .filter(path -> path.getFileName() != null && path.getFileName().toString().endsWith(".json"))
+                .filter(path -> !packRoot || isUnderRecipeFolder(root.relativize(path)))
+                .filter(Files::isRegularFile)
+                .sorted(Comparator.comparing(Path::toString))
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isUnderRecipeFolder(Path relative) {
+        // data/<namespace>/recipes/... (or recipe/ since 1.21)
+        if (relative.getNameCount() < 4 || !relative.getName(0).toString().equals("data")) {
+            return false;
+        }
+        String folder = relative.getName(2).toString();
+        return folder.equals("recipes") || folder.equals("recipe");
+    }
+
+    private static List<JsonObject> readFile(Path file) throws IOException {
+        String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        JsonElement root = JsonParser.parseString(content);
+
+        // Pre-merged files are arrays of recipes that already carry their itemName
+        if (root.isJsonArray()) {
+            List<JsonObject> recipes = new ArrayList<>();
+            for (JsonElement element : root.getAsJsonArray()) {
+                if (element.isJsonObject()) {
+                    recipes.add(withItemName(element.getAsJsonObject(), file));
+                }
+            }
+            return recipes;
+        }
+        if (root.isJsonObject()) {
+            return Collections.singletonList(withItemName(root.getAsJsonObject(), file));
+        }
+        return Collections.emptyList();
+    }
+
+    private static JsonObject withItemName(JsonObject recipe, Path file) {
+        if (!recipe.has("itemName")) {
+            recipe.addProperty("itemName", itemName(recipe, file));
+        }
+        return recipe;
+    }
+
+    /**
+     * Vanilla recipe files name their output in {@code result} ({@code item} before 1.20.5,
+     * {@code id} after, or a plain string). Fall back to the file name within its namespace.
+     */
+    private static String itemName(JsonObject recipe, Path file) {
+        JsonElement result = recipe.get("result");
+        if (result != null) {
+            if (result.isJsonPrimitive()) {
+                return result.getAsString();
+            }
+            if (result.isJsonObject()) {
+                JsonObject resultObj = result.getAsJsonObject();
+                if (resultObj.has("item")) {
+                    return resultObj.get("item").getAsString();
+                }
+                if (resultObj.has("id")) {
+                    return resultObj.get("id").getAsString();
+                }
+            }
+        }
+
+        String fileName = file.getFileName().toString();
+        if (fileName.endsWith(".json")) {
+            fileName = fileName.substring(0, fileName.length() - ".json".length());
+        }
+        return namespace(file) + ":" + fileName;
+    }
+
+    private static String namespace(Path file) {
+        for (int i = 0; i < file.getNameCount() - 1; i++) {
+            if (file.getName(i).toString().equals("data")) {
+                return file.getName(i + 1).toString();
+            }
+        }
+        return DEFAULT_NAMESPACE;
+    }
+}
@@ -0,0 +1,192 @@
+package net.superscary.himl.trainer;
+
+import net.superscary.himl.model.MLModel;
+import net.superscary.himl.model.MLModelFactory;
+import net.superscary.himl.parser.RecipeParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Data-parallel training across processes.
+ * <p>
+ * Each worker loads the same recipes, trains both models (gradient descent and Adam, as in {@code Main})
+ * on its own shard of the items for a few epochs per round, and pushes the sparse change in its weights
+ * to a {@link ParameterServer}. The server averages the changes and answers with the parameters that
+ * moved, which the worker adopts before the next round. Nothing here assumes loopback: pointing workers
+ * at another host's server gives a multi-node run.
+ * <pre>
+ * local  &lt;recipes&gt; &lt;workers&gt; &lt;rounds&gt; &lt;epochsPerRound&gt; [staleness]   server plus worker JVMs on this machine
+ * server &lt;recipes&gt; &lt;port&gt; &lt;workers&gt; [staleness]                     server only, workers started elsewhere
+ * worker &lt;recipes&gt; &lt;host&gt; &lt;port&gt; &lt;id&gt; &lt;workers&gt; &lt;rounds&gt; &lt;epochsPerRound&gt;
+ * </pre>
+ * A staleness of 0 (the default) is synchronous training.
+ */
+public class DataParallelTraining {
+    private static final double LEARNING_RATE = 0.5;
+    private static final double MIN_DELTA = 1e-12;
+
+    public static void main(String[] args) {
+        try {
+            if (args.length == 0) {
+                throw new IllegalArgumentException("Expected a mode: local, server or worker");
+            }
+            switch (args[0]) {
+                case "local":
+                    runLocal(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                        args.length > 5 ? Integer.parseInt(args[5]) : 0);
+                    break;
+                case "server":
+                    runServer(args[1], InetAddress.getByName("0.0.0.0"), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                        args.length > 4 ? Integer.parseInt(args[4]) : 0, null);
+                    break;
+                case "worker":
+                    runWorker(args[1], args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                        Integer.parseInt(args[5]), Integer.parseInt(args[6]), Integer.parseInt(args[7]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown mode: " + args[0]);
+            }
+        } catch (Exception e) {
+            System.err.println("Data-parallel training failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a server in this process on loopback and starts {@code workers} worker JVMs next to it.
+     * Worker output goes to {@code worker-<id>.log} in the working directory.
+     */
+    public static void runLocal(String recipesFile, int workers, int rounds, int epochsPerRound, int staleness) throws Exception {
+        List<String> javaCommand = Arrays.asList(
+            Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+            "-cp", System.getProperty("java.class.path"),
+            DataParallelTraining.class.getName());
+
+        runServer(recipesFile, InetAddress.getLoopbackAddress(), 0, workers, staleness, port -> {
+            List<Process> processes = new ArrayList<>();
+            for (int id = 0; id < workers; id++) {
+                List<String> command = new ArrayList<>(javaCommand);
+                command.addAll(Arrays.asList("worker", recipesFile, "127.0.0.1", String.valueOf(port), String.valueOf(id),
+                    String.valueOf(workers), String.valueOf(rounds), String.valueOf(epochsPerRound)));
+                processes.add(new ProcessBuilder(command)
+                    .redirectOutput(new File("worker-" + id + ".log"))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start());
+            }
+            return processes;
+        });
+    }
+
+    private interface WorkerLauncher {
+        List<Process> launch(int port) throws IOException;
+    }
+
+    private static void runServer(String recipesFile, InetAddress bindAddress, int port, int workers, int staleness,
+                                  WorkerLauncher launcher) throws Exception {
+        MLModel model1 = MLModelFactory.createModel("gradient", 0.01);
+        MLModel model2 = MLModelFactory.createModel("adam", 0.01);
+        RecipeParser recipeParser = new RecipeParser(model1);
+        recipeParser.loadRecipes(recipesFile);
+        List<String> materials = initialize(recipeParser, model1, model2);
+
+        try (ParameterServer server = new ParameterServer(bindAddress, port, workers, staleness)) {
+            server.setParameters(Trainer.readParameters(materials, model1, model2));
+            server.start();
+            System.out.printf("Parameter server listening on port %d for %d workers (%s)%n", server.getPort(), workers,
+                staleness == 0 ? "synchronous" : "staleness " + staleness);
+
+            List<Process> processes = launcher != null ? launcher.launch(server.getPort()) : Collections.emptyList();
+            Map<String, Double> result;
+            try {
+                result = server.awaitCompletion();
+            } catch (IOException e) {
+                processes.forEach(Process::destroy);
+                throw e;
+            }
+            for (Process process : processes) {
+                if (process.waitFor() != 0) {
+                    System.err.println("A worker exited with status " + process.exitValue());
+                }
+            }
+            Trainer.applyParameters(result, model1, model2);
+        }
+
+        Trainer trainer = new Trainer(model1, model2, recipeParser);
+        System.out.println("Average error after data-parallel training: " + trainer.evaluate());
+        trainer.saveTrainedData();
+    }
+
+    public static void runWorker(String recipesFile, String host, int port, int workerId, int workers,
+                                 int rounds, int epochsPerRound) throws IOException {
+        MLModel model1 = MLModelFactory.createModel("gradient", 0.01);
+        MLModel model2 = MLModelFactory.createModel("adam", 0.01);
+        RecipeParser recipeParser = new RecipeParser(model1);
+        recipeParser.loadRecipes(recipesFile);
+        List<String> materials = initialize(recipeParser, model1, model2);
+
+        Trainer trainer = new Trainer(model1, model2, recipeParser);
+        trainer.setItemShard(workerId, workers);
+
+        // A reply can be held back until the slowest worker finishes its round, so wait as long as the server does
+        int timeout = (int) Math.min(ParameterServer.DEFAULT_TIMEOUT.toMillis(), Integer.MAX_VALUE);
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), timeout);
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout);
+
+            out.writeByte(ParameterServer.HELLO);
+            out.writeInt(workerId);
+            out.flush();
+            long version = in.readLong();
+            Trainer.applyParameters(ParameterServer.readEntries(in), model1, model2);
+
+            for (int round = 1; round <= rounds; round++) {
+                Map<String, Double> before = Trainer.readParameters(materials, model1, model2);
+                trainer.train(epochsPerRound, LEARNING_RATE);
+                Map<String, Double> after = Trainer.readParameters(materials, model1, model2);
+
+                // Only ship what this shard actually moved
+                Map<String, Double> deltas = new HashMap<>();
+                for (Map.Entry<String, Double> entry : after.entrySet()) {
+                    double delta = entry.getValue() - before.get(entry.getKey());
+                    if (Math.abs(delta) > MIN_DELTA) {
+                        deltas.put(entry.getKey(), delta);
+                    }
+                }
+
+                out.writeByte(ParameterServer.PUSH);
+                out.writeInt(round);
+                out.writeLong(version);
+                ParameterServer.writeEntries(out, deltas);
+                out.flush();
+
+                version = in.readLong();
+                Map<String, Double> changes = ParameterServer.readEntries(in);
+                Trainer.applyParameters(changes, model1, model2);
+                System.err.printf("Worker %d round %d/%d: pushed %d deltas, received %d parameters (version %d)%n",
+                    workerId, round, rounds, deltas.size(), changes.size(), version);
+            }
+
+            out.writeByte(ParameterServer.BYE);
+            out.flush();
+        }
+    }
+
+    private static List<String> initialize(RecipeParser recipeParser, MLModel model1, MLModel model2) {
+        List<String> materials = new ArrayList<>(recipeParser.getBaseMaterials());
+        for (String material : materials) {
+            model1.initializeBaseMaterial(material);
+            model2.initializeBaseMaterial(material);
+        }
+        return materials;
+    }
+}
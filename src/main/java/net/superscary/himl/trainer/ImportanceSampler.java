@@ -0,0 +1,88 @@
+package net.superscary.himl.trainer;
+
+import java.util.*;
+
+/**
+ * Draws training items in proportion to their most recent error.
+ * <p>
+ * Priorities live in a sum-tree (a complete binary tree whose inner nodes hold the sum of
+ * their children), so both drawing an item and updating its priority are O(log items).
+ * Every item keeps a small floor priority so converged items are still revisited now and then.
+ * <p>
+ * Draws are biased on purpose: callers apply them as ordinary updates, without 1 / (N x p) importance
+ * weights, so training focuses on high-error items (see {@link Trainer#enableImportanceSampling}).
+ */
+class ImportanceSampler {
+    private static final double MIN_PRIORITY = 1e-4;
+
+    private final List<String> items;
+    private final Map<String, Integer> leafIndex;
+    private final double[] tree;
+    private final int capacity;
+
+    /**
+     * @param items The items to sample from
+     * @param initialPriority Starting priority of every item, usually high so each one is seen early
+     */
+    ImportanceSampler(List<String> items, double initialPriority) {
+        this.items = new ArrayList<>(items);
+        this.leafIndex = new HashMap<>(items.size() * 2);
+        int size = 1;
+        while (size < Math.max(1, items.size())) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.tree = new double[2 * size];
+        for (int i = 0; i < this.items.size(); i++) {
+            leafIndex.put(this.items.get(i), i);
+            tree[size + i] = Math.max(initialPriority, MIN_PRIORITY);
+        }
+        for (int node = size - 1; node > 0; node--) {
+            tree[node] = tree[2 * node] + tree[2 * node + 1];
+        }
+    }
+
+    /**
+     * Records the latest absolute error of an item as its sampling priority.
+     */
+    void update(String item, double error) {
+        Integer leaf = leafIndex.get(item);
+        if (leaf == null) {
+            return;
+        }
+        int node = capacity + leaf;
+        double priority = Double.isNaN(error) ? MIN_PRIORITY : Math.abs(error) + MIN_PRIORITY;
+        double delta = priority - tree[node];
+        for (; node > 0; node >>= 1) {
+            tree[node] += delta;
+        }
+    }
+
+    /**
+     * Draws {@code count} items with replacement, each with probability proportional to its priority.
+     */
+    List<String> draw(int count, Random random) {
+        List<String> drawn = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double target = random.nextDouble() * tree[1];
+            int node = 1;
+            while (node < capacity) {
+                int left = 2 * node;
+                if (target < tree[left] || tree[left + 1] <= 0) {
+                    node = left;
+                } else {
+                    target -= tree[left];
+                    node = left + 1;
+                }
+            }
+            int leaf = node - capacity;
+            // Rounding can land past the last real leaf, clamp back onto it
+            drawn.add(items.get(Math.min(leaf, items.size() - 1)));
+        }
+        return drawn;
+    }
+
+    double totalPriority() {
+        return tree[1];
+    }
+}
@@ -0,0 +1,379 @@
+package net.superscary.himl.trainer;
+
+import net.superscary.himl.model.MLModel;
+import net.superscary.himl.model.MLModelFactory;
+import net.superscary.himl.parser.RecipeParser;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps training both models on observed item weights as they arrive, instead of on the heuristic targets.
+ * <p>
+ * Observations are lines of {@code <itemId> <weight>} (whitespace, comma or {@code =} separated, {@code #}
+ * starts a comment), read from a followed file ({@link #tailFile}) or from clients of a loopback socket
+ * ({@link #listen}). Sources put them on a bounded queue and block when it is full, so a slow learner holds
+ * back the file reader, and TCP flow control holds back socket clients, rather than growing memory. One
+ * learner thread owns the models: it drains the queue in batches, applies each observation as a normal
+ * {@code updateWeights} call and ends an epoch after every batch so batch optimizers step. At most every
+ * publish interval it republishes the live weights (see {@link Trainer#enableSharedWeights}) and writes a
+ * {@link Trainer#saveTrainedDataDelta() delta export}.
+ * <pre>
+ * OnlineTrainer &lt;recipes.json&gt; (--tail &lt;file&gt; | --port &lt;port&gt;)... [--shared &lt;file&gt;] [--publish &lt;seconds&gt;]
+ * </pre>
+ */
+public class OnlineTrainer implements Closeable {
+    private static final int BATCH_SIZE = 256;
+    private static final long POLL_MILLIS = 200;
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private final MLModel model1;
+    private final MLModel model2;
+    private final RecipeParser recipeParser;
+    private final Trainer trainer;
+    private final BlockingQueue<Observation> queue;
+    private final double learningRate;
+    private final long publishIntervalNanos;
+    private final Set<String> knownItems;
+    private final List<Thread> sourceThreads = new ArrayList<>();
+    private final List<Closeable> sourceResources = new ArrayList<>();
+    private volatile boolean running;
+    private Thread learner;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    // Learner thread only
+    private long applied;
+    private long unknown;
+    private long publishedAt;
+    private double errorSinceLastPublish;
+    private long appliedSinceLastPublish;
+
+    private static final class Observation {
+        private final String itemId;
+        private final double weight;
+
+        Observation(String itemId, double weight) {
+            this.itemId = itemId;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param queueCapacity Observations buffered before sources block
+     * @param learningRate Passed to every {@code updateWeights} call
+     * @param publishInterval Minimum time between two publishes
+     */
+    public OnlineTrainer(MLModel model1, MLModel model2, RecipeParser recipeParser, int queueCapacity,
+                         double learningRate, Duration publishInterval) {
+        this.model1 = model1;
+        this.model2 = model2;
+        this.recipeParser = recipeParser;
+        this.trainer = new Trainer(model1, model2, recipeParser);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.learningRate = learningRate;
+        this.publishIntervalNanos = publishInterval.toNanos();
+        // Crafted items and raw materials can both be observed, anything else is a typo or another pack
+        this.knownItems = new HashSet<>(recipeParser.getRecipes());
+        knownItems.addAll(recipeParser.getBaseMaterials());
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length < 3) {
+                throw new IllegalArgumentException("Expected <recipes.json> and at least one --tail <file> or --port <port>");
+            }
+            MLModel model1 = MLModelFactory.createModel("gradient", 0.01);
+            MLModel model2 = MLModelFactory.createModel("adam", 0.01);
+            RecipeParser recipeParser = new RecipeParser(model1);
+            recipeParser.loadRecipes(args[0]);
+            for (String material : recipeParser.getBaseMaterials()) {
+                model1.initializeBaseMaterial(material);
+                model2.initializeBaseMaterial(material);
+            }
+
+            Duration publishInterval = Duration.ofSeconds(10);
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                if ("--publish".equals(args[i])) {
+                    publishInterval = Duration.ofSeconds(Long.parseLong(args[i + 1]));
+                }
+            }
+            OnlineTrainer online = new OnlineTrainer(model1, model2, recipeParser, 10_000, 0.5, publishInterval);
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "--tail":
+                        online.tailFile(Paths.get(args[i + 1]));
+                        break;
+                    case "--port":
+                        System.out.println("Listening for observations on port " + online.listen(Integer.parseInt(args[i + 1])));
+                        break;
+                    case "--shared":
+                        online.enableSharedWeights(Paths.get(args[i + 1]));
+                        break;
+                    case "--publish":
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    online.close();
+                } catch (IOException e) {
+                    System.err.println("Error stopping online training: " + e.getMessage());
+                }
+            }));
+            online.start();
+            online.learner.join();
+        } catch (Exception e) {
+            System.err.println("Online training failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public void enableSharedWeights(Path file) throws IOException {
+        trainer.enableSharedWeights(file);
+    }
+
+    /**
+     * Follows a file like {@code tail -n +1 -f}: existing lines first, then whatever is appended. If the file
+     * shrinks (truncated or rotated in place) it is read again from the start.
+     */
+    public void tailFile(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        addResource(channel);
+        startSource("online-tail-" + file.getFileName(), () -> {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_CHUNK);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = 0;
+            while (running) {
+                if (channel.size() < position) {
+                    position = 0;
+                    line.reset();
+                }
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                position += read;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        submitLine(line.toString(StandardCharsets.UTF_8));
+                        line.reset();
+                    } else {
+                        line.write(b);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Accepts observation streams from local clients, one line per observation.
+     * @param port Port on the loopback interface, 0 for any free port
+     * @return The bound port
+     */
+    public int listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        addResource(serverSocket);
+        startSource("online-accept", () -> {
+            while (running) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    return; // closed
+                }
+                addResource(socket);
+                startSource("online-client", () -> {
+                    try (socket; BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                        String line;
+                        while (running && (line = reader.readLine()) != null) {
+                            submitLine(line);
+                        }
+                    }
+                });
+            }
+        });
+        return serverSocket.getLocalPort();
+    }
+
+    private interface Source {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private synchronized void addResource(Closeable resource) {
+        sourceResources.add(resource);
+    }
+
+    private synchronized void startSource(String name, Source source) {
+        running = true;
+        Thread thread = new Thread(() -> {
+            try {
+                source.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Observation source " + Thread.currentThread().getName() + " failed: " + e.getMessage());
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        sourceThreads.add(thread);
+        thread.start();
+    }
+
+    private void submitLine(String line) throws InterruptedException {
+        int comment = line.indexOf('#');
+        String text = (comment >= 0 ? line.substring(0, comment) : line).trim();
+        if (text.isEmpty()) {
+            return;
+        }
+        String[] parts = text.split("[\\s,=]+");
+        try {
+            double weight = Double.parseDouble(parts[parts.length - 1]);
+            if (parts.length != 2 || !(weight > 0.0) || Double.isInfinite(weight)) {
+                throw new NumberFormatException(text);
+            }
+            submit(parts[0], weight);
+        } catch (NumberFormatException e) {
+            malformed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues one observation, blocking while the queue is full.
+     */
+    public void submit(String itemId, double observedWeight) throws InterruptedException {
+        queue.put(new Observation(itemId, observedWeight));
+        received.incrementAndGet();
+    }
+
+    public void start() {
+        running = true;
+        publishedAt = System.nanoTime();
+        learner = new Thread(this::learn, "online-learner");
+        learner.start();
+    }
+
+    private void learn() {
+        List<Observation> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (running || !queue.isEmpty()) {
+                Observation first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    apply(batch);
+                    batch.clear();
+                }
+                if (appliedSinceLastPublish > 0 && System.nanoTime() - publishedAt >= publishIntervalNanos) {
+                    publish();
+                }
+            }
+            if (appliedSinceLastPublish > 0) {
+                publish();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void apply(List<Observation> batch) {
+        for (Observation observation : batch) {
+            if (!knownItems.contains(observation.itemId)) {
+                unknown++;
+                continue;
+            }
+            Map<String, Integer> baseMaterials = recipeParser.resolveBaseMaterials(observation.itemId);
+            if (baseMaterials.isEmpty()) {
+                unknown++;
+                continue;
+            }
+            int complexity = recipeParser.getRecipeComplexity(observation.itemId);
+
+            double prediction1 = model1.predictWeight(baseMaterials, complexity);
+            if (!Double.isNaN(prediction1)) {
+                double error1 = observation.weight - prediction1;
+                model1.updateWeights(baseMaterials, complexity, error1, learningRate);
+                errorSinceLastPublish += Math.abs(error1);
+            }
+            double prediction2 = model2.predictWeight(baseMaterials, complexity);
+            if (!Double.isNaN(prediction2)) {
+                model2.updateWeights(baseMaterials, complexity, observation.weight - prediction2, learningRate);
+            }
+            applied++;
+            appliedSinceLastPublish++;
+        }
+        model1.endEpoch();
+        model2.endEpoch();
+    }
+
+    private void publish() {
+        System.out.printf("Online: %d observations received, %d applied (%d unknown items, %d malformed lines), "
+                + "queue %d, average error %.4f since last publish%n",
+            received.get(), applied, unknown, malformed.get(), queue.size(), errorSinceLastPublish / appliedSinceLastPublish);
+        trainer.publishSharedWeights();
+        try {
+            trainer.saveTrainedDataDelta();
+        } catch (IOException e) {
+            System.err.println("Error publishing weights: " + e.getMessage());
+        }
+        publishedAt = System.nanoTime();
+        errorSinceLastPublish = 0.0;
+        appliedSinceLastPublish = 0;
+    }
+
+    public long getAppliedCount() {
+        return applied;
+    }
+
+    /**
+     * Stops the sources, applies whatever is still queued, publishes once more and waits for the learner.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        List<Closeable> resources;
+        List<Thread> threads;
+        synchronized (this) {
+            resources = new ArrayList<>(sourceResources);
+            threads = new ArrayList<>(sourceThreads);
+        }
+        for (Closeable resource : resources) {
+            resource.close();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt(); // unblocks a put on a full queue
+        }
+        if (learner != null) {
+            try {
+                learner.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
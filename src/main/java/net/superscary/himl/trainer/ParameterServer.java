@@ -0,0 +1,279 @@
+package net.superscary.himl.trainer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Holds the shared parameters for data-parallel training and merges the sparse deltas pushed by workers.
+ * <p>
+ * Every push is applied immediately, scaled by {@code 1 / workers} so the result is the average of the
+ * replicas. The reply to a push for round {@code r} is held back until every other worker has pushed round
+ * {@code r - staleness}: with a staleness of 0 this is a barrier per round (synchronous training), larger
+ * values let fast workers run ahead by that many rounds (bounded-staleness asynchronous training).
+ * Replies only carry the parameters that changed since the version the worker last saw.
+ * <p>
+ * A worker that does not connect, goes silent or disconnects without saying goodbye within the timeout
+ * fails the run: pending and later pushes are refused (their connections closed) and
+ * {@link #awaitCompletion} throws, instead of the remaining workers waiting for it forever.
+ * <p>
+ * Wire format (big endian, {@link DataOutputStream}):
+ * <pre>
+ * HELLO  byte 1, int workerId                          -> long version, int n, n x (utf key, double value)
+ * PUSH   byte 2, int round, long baseVersion,
+ *        int n, n x (utf key, double delta)            -> long version, int n, n x (utf key, double value)
+ * BYE    byte 3
+ * </pre>
+ */
+public class ParameterServer implements Closeable {
+    static final byte HELLO = 1;
+    static final byte PUSH = 2;
+    static final byte BYE = 3;
+    static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(10);
+
+    private final ServerSocket serverSocket;
+    private final int workers;
+    private final int staleness;
+    private final Map<String, Double> parameters;
+    private final Map<String, Long> parameterVersions;
+    private final Map<Integer, Integer> workerRounds;
+    private final Set<Integer> finishedWorkers;
+    private final long timeoutMillis;
+    private long version;
+    private long startedAt;
+    private String failure;
+    private Thread acceptThread;
+
+    /**
+     * @param bindAddress Address to listen on, loopback for single host runs
+     * @param port Port to listen on, 0 for any free port
+     * @param workers Number of workers that will connect
+     * @param staleness Rounds a worker may run ahead of the slowest one, 0 for synchronous training
+     */
+    public ParameterServer(InetAddress bindAddress, int port, int workers, int staleness) throws IOException {
+        this(bindAddress, port, workers, staleness, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timeout How long to wait for all workers to connect, for a worker's next message, and for the
+     *                slowest worker to catch up before the run fails. Must cover a worker's longest round.
+     */
+    public ParameterServer(InetAddress bindAddress, int port, int workers, int staleness, Duration timeout) throws IOException {
+        if (workers < 1 || staleness < 0 || timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("Need at least one worker, a non-negative staleness and a positive timeout");
+        }
+        this.timeoutMillis = timeout.toMillis();
+        this.serverSocket = new ServerSocket(port, workers, bindAddress);
+        this.workers = workers;
+        this.staleness = staleness;
+        this.parameters = new HashMap<>();
+        this.parameterVersions = new HashMap<>();
+        this.workerRounds = new HashMap<>();
+        this.finishedWorkers = new HashSet<>();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void setParameters(Map<String, Double> initial) {
+        parameters.putAll(initial);
+        initial.keySet().forEach(key -> parameterVersions.put(key, version));
+    }
+
+    public synchronized Map<String, Double> getParameters() {
+        return new HashMap<>(parameters);
+    }
+
+    public synchronized void start() {
+        startedAt = System.currentTimeMillis();
+        acceptThread = new Thread(this::acceptLoop, "parameter-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Blocks until every worker has said goodbye and returns the final parameters.
+     * @throws IOException If not every worker connected in time, or one timed out or disconnected mid-run
+     */
+    public synchronized Map<String, Double> awaitCompletion() throws InterruptedException, IOException {
+        long connectDeadline = startedAt + timeoutMillis;
+        while (finishedWorkers.size() < workers && failure == null) {
+            if (workerRounds.size() < workers) {
+                long remaining = connectDeadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    fail("Only " + workerRounds.size() + " of " + workers + " workers connected within " + timeoutMillis + " ms");
+                    break;
+                }
+                wait(remaining);
+            } else {
+                wait();
+            }
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        return new HashMap<>(parameters);
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread handler = new Thread(() -> handle(socket), "parameter-server-worker");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (SocketException e) {
+                return; // closed
+            } catch (IOException e) {
+                System.err.println("Parameter server accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        int workerId = -1;
+        boolean done = false;
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+            while (true) {
+                byte type = in.readByte();
+                if (type == HELLO) {
+                    workerId = in.readInt();
+                    register(workerId);
+                    writeChanges(out, -1);
+                } else if (type == PUSH) {
+                    int round = in.readInt();
+                    long baseVersion = in.readLong();
+                    Map<String, Double> deltas = readEntries(in);
+                    applyPush(workerId, round, deltas);
+                    awaitStaleness(round);
+                    writeChanges(out, baseVersion);
+                } else if (type == BYE) {
+                    done = true;
+                    return;
+                } else {
+                    throw new IOException("Unknown message type " + type);
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            fail("Worker " + workerId + " disconnected before finishing");
+        } catch (IOException e) {
+            fail("Worker " + workerId + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (done) {
+                finish(workerId);
+            }
+        }
+    }
+
+    private synchronized void fail(String reason) {
+        if (failure == null) {
+            failure = reason;
+            System.err.println("Parameter server failed: " + reason);
+        }
+        notifyAll();
+    }
+
+    private synchronized void register(int workerId) {
+        workerRounds.putIfAbsent(workerId, 0);
+        notifyAll();
+    }
+
+    private synchronized void applyPush(int workerId, int round, Map<String, Double> deltas) {
+        version++;
+        double scale = 1.0 / workers;
+        for (Map.Entry<String, Double> delta : deltas.entrySet()) {
+            parameters.merge(delta.getKey(), delta.getValue() * scale, Double::sum);
+            parameterVersions.put(delta.getKey(), version);
+        }
+        workerRounds.put(workerId, round);
+        notifyAll();
+    }
+
+    private synchronized void awaitStaleness(int round) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (failure == null && round - slowestRound() > staleness) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                fail("Round " + round + " timed out waiting for the slowest worker");
+                break;
+            }
+            wait(remaining);
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * Lowest round pushed by a worker that is still training. Workers that have not connected yet count as round 0.
+     */
+    private int slowestRound() {
+        int slowest = Integer.MAX_VALUE;
+        int active = 0;
+        for (Map.Entry<Integer, Integer> entry : workerRounds.entrySet()) {
+            if (!finishedWorkers.contains(entry.getKey())) {
+                slowest = Math.min(slowest, entry.getValue());
+                active++;
+            }
+        }
+        if (workerRounds.size() < workers) {
+            return 0;
+        }
+        return active == 0 ? Integer.MAX_VALUE : slowest;
+    }
+
+    private synchronized void finish(int workerId) {
+        if (workerId >= 0 && finishedWorkers.add(workerId)) {
+            notifyAll();
+        }
+    }
+
+    private void writeChanges(DataOutputStream out, long sinceVersion) throws IOException {
+        Map<String, Double> changes = new HashMap<>();
+        long current;
+        synchronized (this) {
+            current = version;
+            for (Map.Entry<String, Long> entry : parameterVersions.entrySet()) {
+                if (entry.getValue() > sinceVersion) {
+                    changes.put(entry.getKey(), parameters.get(entry.getKey()));
+                }
+            }
+        }
+        out.writeLong(current);
+        writeEntries(out, changes);
+    }
+
+    static void writeEntries(DataOutputStream out, Map<String, Double> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Double> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeDouble(entry.getValue());
+        }
+    }
+
+    static Map<String, Double> readEntries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Double> entries = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            entries.put(in.readUTF(), in.readDouble());
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,378 @@
+package net.superscary.himl.trainer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+/**
+ * Memory-mapped weight file that the trainer rewrites in place while it trains.
+ * <p>
+ * Other processes on the same host map the same file with {@link Reader} and read weights straight
+ * out of the mapping. Consistency is kept with a seqlock: the writer makes the sequence odd, writes
+ * the slots, then makes it even again, and readers retry whenever they saw an odd or changed sequence.
+ * <p>
+ * A new table (say, for a different material layout) never touches an existing file's contents. It is
+ * written to a temporary file holding its first publish, renamed over the old one, and the old file is then
+ * flagged as superseded; readers see the flag and remap the path. The sequence carries over from the old
+ * file, so the version a reader sees never goes backwards.
+ * <p>
+ * Layout (little endian):
+ * <pre>
+ *  0  int    magic "HIWT"
+ *  4  int    format version
+ *  8  long   sequence (odd while a publish is in progress)
+ * 16  int    material slot count
+ * 20  int    item slot count
+ * 24  int    offset of the weight slots
+ * 32  double complexity weight
+ * 40  long   time of the last publish (epoch millis)
+ * 48  int    superseded (1 once a newer table replaced this file)
+ * 64  names  one (ushort length, UTF-8 bytes) per slot, materials first, then items
+ * ..  double one weight per slot, 8 byte aligned
+ * </pre>
+ */
+public class SharedWeightTable implements Closeable {
+    private static final int MAGIC = 0x48495754; // "HIWT"
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int MATERIALS_OFFSET = 16;
+    private static final int ITEMS_OFFSET = 20;
+    private static final int DATA_OFFSET_OFFSET = 24;
+    private static final int COMPLEXITY_OFFSET = 32;
+    private static final int TIMESTAMP_OFFSET = 40;
+    private static final int SUPERSEDED_OFFSET = 48;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    // Other users' processes (e.g. a game server) must be able to map the table
+    private static final Set<PosixFilePermission> DEFAULT_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private final List<String> materials;
+    private final List<String> items;
+    private final int dataOffset;
+
+    private SharedWeightTable(MappedByteBuffer buffer, List<String> materials, List<String> items, int dataOffset) {
+        this.buffer = buffer;
+        this.materials = materials;
+        this.items = items;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Creates (or replaces) the weight file with one slot per material and per item, holding the given weights
+     * as its first publish. An existing file is replaced atomically, never rewritten.
+     * @param materialWeights Weights in {@code materials} order
+     * @param itemWeights Weights in {@code items} order
+     * @param complexityWeight The model's complexity weight
+     */
+    public static SharedWeightTable create(Path file, List<String> materials, List<String> items,
+                                           double[] materialWeights, double[] itemWeights,
+                                           double complexityWeight) throws IOException {
+        List<byte[]> names = new ArrayList<>(materials.size() + items.size());
+        int namesSize = 0;
+        for (String name : concat(materials, items)) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("Identifier too long for weight table: " + name);
+            }
+            names.add(bytes);
+            namesSize += 2 + bytes.length;
+        }
+        int dataOffset = (HEADER_SIZE + namesSize + 7) & ~7;
+        long size = dataOffset + 8L * names.size();
+
+        Path absolute = file.toAbsolutePath();
+        MappedByteBuffer previous = mapExisting(absolute);
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        MappedByteBuffer buffer;
+        try {
+            copyPermissions(absolute, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping outlives the channel
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MATERIALS_OFFSET, materials.size());
+            buffer.putInt(ITEMS_OFFSET, items.size());
+            buffer.putInt(DATA_OFFSET_OFFSET, dataOffset);
+            buffer.putInt(4, FORMAT);
+            int position = HEADER_SIZE;
+            for (byte[] bytes : names) {
+                buffer.putShort(position, (short) bytes.length);
+                buffer.duplicate().position(position + 2).put(bytes);
+                position += 2 + bytes.length;
+            }
+            // Continue the old file's version (rounded up past an unfinished publish)
+            if (previous != null) {
+                buffer.putLong(SEQUENCE_OFFSET, ((long) LONGS.getAcquire(previous, SEQUENCE_OFFSET) + 1) & ~1L);
+            }
+            buffer.putInt(0, MAGIC);
+
+            SharedWeightTable table = new SharedWeightTable(buffer, List.copyOf(materials), List.copyOf(items), dataOffset);
+            table.publish(materialWeights, itemWeights, complexityWeight);
+            buffer.force();
+            try {
+                Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (previous != null) {
+                INTS.setRelease(previous, SUPERSEDED_OFFSET, 1);
+                previous.force();
+            }
+            return table;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Temporary files are created owner-only. Give the replacement the permissions of the file it replaces,
+     * or world-readable ones for a new table, so readers running as other users can still map it.
+     */
+    private static void copyPermissions(Path file, Path temp) throws IOException {
+        if (Files.getFileAttributeView(temp, PosixFileAttributeView.class) == null) {
+            return;
+        }
+        Files.setPosixFilePermissions(temp, Files.exists(file) ? Files.getPosixFilePermissions(file) : DEFAULT_PERMISSIONS);
+    }
+
+    /**
+     * Maps an existing weight table for writing, or returns null if there is none.
+     */
+    private static MappedByteBuffer mapExisting(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer.getInt(0) == MAGIC ? buffer : null;
+        }
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> all = new ArrayList<>(first.size() + second.size());
+        all.addAll(first);
+        all.addAll(second);
+        return all;
+    }
+
+    public List<String> getMaterials() {
+        return materials;
+    }
+
+    public List<String> getItems() {
+        return items;
+    }
+
+    /**
+     * Replaces every weight in the file as one consistent update.
+     * @param materialWeights Weights in {@link #getMaterials()} order
+     * @param itemWeights Weights in {@link #getItems()} order
+     * @param complexityWeight The model's complexity weight
+     */
+    public void publish(double[] materialWeights, double[] itemWeights, double complexityWeight) {
+        if (materialWeights.length != materials.size() || itemWeights.length != items.size()) {
+            throw new IllegalArgumentException("Weights do not match the table layout");
+        }
+
+        long sequence = (long) LONGS.getOpaque(buffer, SEQUENCE_OFFSET);
+        LONGS.setOpaque(buffer, SEQUENCE_OFFSET, sequence + 1);
+        VarHandle.storeStoreFence();
+
+        int position = dataOffset;
+        for (double weight : materialWeights) {
+            buffer.putDouble(position, weight);
+            position += 8;
+        }
+        for (double weight : itemWeights) {
+            buffer.putDouble(position, weight);
+            position += 8;
+        }
+        buffer.putDouble(COMPLEXITY_OFFSET, complexityWeight);
+        buffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+
+        LONGS.setRelease(buffer, SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    /**
+     * Number of completed publishes.
+     */
+    public long getVersion() {
+        return (long) LONGS.getAcquire(buffer, SEQUENCE_OFFSET) >>> 1;
+    }
+
+    @Override
+    public void close() {
+        buffer.force();
+    }
+
+    /**
+     * Read side, for use from any process that can map the file. Remaps the file when the trainer replaces it.
+     */
+    public static class Reader {
+        private final Path file;
+        private volatile Mapping mapping;
+
+        private static final class Mapping {
+            private final ByteBuffer buffer;
+            private final Map<String, Integer> slots;
+            private final int materialCount;
+            private final int dataOffset;
+
+            Mapping(ByteBuffer buffer, Map<String, Integer> slots, int materialCount, int dataOffset) {
+                this.buffer = buffer;
+                this.slots = slots;
+                this.materialCount = materialCount;
+                this.dataOffset = dataOffset;
+            }
+        }
+
+        private Reader(Path file, Mapping mapping) {
+            this.file = file;
+            this.mapping = mapping;
+        }
+
+        public static Reader open(Path file) throws IOException {
+            return new Reader(file, map(file));
+        }
+
+        private static Mapping map(Path file) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+                throw new IOException("Not a weight table: " + file);
+            }
+
+            int materialCount = buffer.getInt(MATERIALS_OFFSET);
+            int slotCount = materialCount + buffer.getInt(ITEMS_OFFSET);
+            Map<String, Integer> slots = new HashMap<>(slotCount * 2);
+            int position = HEADER_SIZE;
+            for (int slot = 0; slot < slotCount; slot++) {
+                byte[] bytes = new byte[buffer.getShort(position) & 0xFFFF];
+                buffer.duplicate().position(position + 2).get(bytes);
+                slots.put(new String(bytes, StandardCharsets.UTF_8), slot);
+                position += 2 + bytes.length;
+            }
+            return new Mapping(buffer, slots, materialCount, buffer.getInt(DATA_OFFSET_OFFSET));
+        }
+
+        /**
+         * The current mapping, remapped first if the trainer has replaced the file since it was mapped.
+         */
+        private Mapping current() {
+            Mapping current = mapping;
+            if ((int) INTS.getAcquire(current.buffer, SUPERSEDED_OFFSET) != 0) {
+                synchronized (this) {
+                    current = mapping;
+                    while ((int) INTS.getAcquire(current.buffer, SUPERSEDED_OFFSET) != 0) {
+                        try {
+                            current = map(file);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException("Could not remap weight table " + file, e);
+                        }
+                    }
+                    mapping = current;
+                }
+            }
+            return current;
+        }
+
+        public boolean contains(String id) {
+            return current().slots.containsKey(id);
+        }
+
+        public boolean isMaterial(String id) {
+            Mapping current = current();
+            Integer slot = current.slots.get(id);
+            return slot != null && slot < current.materialCount;
+        }
+
+        /**
+         * Reads one weight from the mapping, retrying while a publish is in progress.
+         * @return The weight, or NaN if the table has no slot for this id
+         */
+        public double getWeight(String id) {
+            while (true) {
+                Mapping current = current();
+                Integer slot = current.slots.get(id);
+                if (slot == null) {
+                    return Double.NaN;
+                }
+                long before = (long) LONGS.getAcquire(current.buffer, SEQUENCE_OFFSET);
+                double weight = current.buffer.getDouble(current.dataOffset + 8 * slot);
+                VarHandle.loadLoadFence();
+                long after = (long) LONGS.getOpaque(current.buffer, SEQUENCE_OFFSET);
+                if ((before & 1) == 0 && before == after) {
+                    return weight;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Reads several weights from the same publish.
+         * @param ids Ids to read
+         * @param into Destination, NaN for ids without a slot
+         * @return The version the weights were read from
+         */
+        public long getWeights(String[] ids, double[] into) {
+            while (true) {
+                Mapping current = current();
+                long before = (long) LONGS.getAcquire(current.buffer, SEQUENCE_OFFSET);
+                for (int i = 0; i < ids.length; i++) {
+                    Integer slot = current.slots.get(ids[i]);
+                    into[i] = slot != null ? current.buffer.getDouble(current.dataOffset + 8 * slot) : Double.NaN;
+                }
+                VarHandle.loadLoadFence();
+                long after = (long) LONGS.getOpaque(current.buffer, SEQUENCE_OFFSET);
+                if ((before & 1) == 0 && before == after) {
+                    return before >>> 1;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        public double getComplexityWeight() {
+            while (true) {
+                Mapping current = current();
+                long before = (long) LONGS.getAcquire(current.buffer, SEQUENCE_OFFSET);
+                double weight = current.buffer.getDouble(COMPLEXITY_OFFSET);
+                VarHandle.loadLoadFence();
+                long after = (long) LONGS.getOpaque(current.buffer, SEQUENCE_OFFSET);
+                if ((before & 1) == 0 && before == after) {
+                    return weight;
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Number of completed publishes to this path, across replacements of the file.
+         */
+        public long getVersion() {
+            return (long) LONGS.getAcquire(current().buffer, SEQUENCE_OFFSET) >>> 1;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package net.superscary.himl.trainer;
 
+import net.superscary.himl.memory.MemoryFootprint;
 import net.superscary.himl.model.MLModel;
+import net.superscary.himl.model.PackedBatch;
 import net.superscary.himl.parser.RecipeParser;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import java.io.*;
 import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
 
 public class Trainer {
@@ -18,6 +21,18 @@ public class Trainer {
     private static final double MAX_TARGET_WEIGHT = 10.0;
     private static final int MAX_TRAINING_SESSIONS = 5;
     private static final double MIN_ERROR_THRESHOLD = 0.1;
+    private static final int MINI_BATCH_SIZE = 256;
+    private SharedWeightTable sharedWeights;
+    private double sampleFraction;
+    private int fullSweepInterval;
+    private boolean compactDataset;
+    private int shardIndex;
+    private int shardCount = 1;
+    private Map<String, Double> savedMaterialWeights;
+    private Map<String, Double> savedItemWeights;
+    private String savedModId;
+    private double savedComplexityWeight;
+    private long savedResolutionVersion;
 
     public Trainer(MLModel model1, MLModel model2, RecipeParser recipeParser) {
         this.model1 = model1;
@@ -110,52 +125,316 @@ public class Trainer {
         return 1.0;
     }
 
+    /**
+     * Keeps a memory-mapped weight file up to date while training, so other processes on this host can read
+     * the current weights of model1 without waiting for {@link #saveTrainedData()}. An existing file is replaced
+     * atomically, then the weights are rewritten in place after every epoch.
+     * @param file The weight file to create
+     */
+    public void enableSharedWeights(Path file) throws IOException {
+        List<String> materials = new ArrayList<>(new TreeSet<>(recipeParser.getBaseMaterials()));
+        List<String> items = new ArrayList<>();
+        for (String item : new TreeSet<>(recipeParser.getRecipes())) {
+            if (!recipeParser.resolveBaseMaterials(item).isEmpty()) {
+                items.add(item);
+            }
+        }
+        double[][] weights = sharedWeightValues(materials, items);
+        sharedWeights = SharedWeightTable.create(file, materials, items, weights[0], weights[1], model1.getComplexityWeight());
+        System.out.println("Publishing live weights to " + file);
+    }
+
+    void publishSharedWeights() {
+        if (sharedWeights == null) {
+            return;
+        }
+        double[][] weights = sharedWeightValues(sharedWeights.getMaterials(), sharedWeights.getItems());
+        sharedWeights.publish(weights[0], weights[1], model1.getComplexityWeight());
+    }
+
+    private double[][] sharedWeightValues(List<String> materials, List<String> items) {
+        double[] materialWeights = new double[materials.size()];
+        for (int i = 0; i < materialWeights.length; i++) {
+            materialWeights[i] = model1.getMaterialWeight(materials.get(i));
+        }
+
+        // Resolutions are memoised by the parser, so repacking only costs a copy per item
+        PackedBatch.Builder batch = PackedBatch.builder();
+        for (String item : items) {
+            batch.add(recipeParser.resolveBaseMaterials(item), recipeParser.getRecipeComplexity(item));
+        }
+        return new double[][] {materialWeights, model1.predictWeights(batch.build())};
+    }
+
+    /**
+     * Switches {@link #train} from uniform sweeps to error-driven sampling. Between full sweeps each epoch
+     * draws {@code sampleFraction} x items, with replacement, in proportion to each item's last error, so
+     * converged items stop costing updates. Every {@code fullSweepInterval}-th epoch (starting with the
+     * first) still visits every item once to refresh all errors.
+     * <p>
+     * Sampled updates are not reweighted by 1 / (N x p), so sampled epochs deliberately lean towards the items
+     * with the largest errors rather than following the full-sweep gradient. Priorities are errors from each
+     * item's last visit, floored near zero; importance weights built from them can be thousands of times too
+     * large for an item whose error has grown since, which destabilises training more than the bias costs.
+     * @param sampleFraction Draws per sampled epoch, as a fraction of the item count
+     * @param fullSweepInterval Epochs between full sweeps
+     */
+    public void enableImportanceSampling(double sampleFraction, int fullSweepInterval) {
+        if (sampleFraction <= 0 || fullSweepInterval < 1) {
+            throw new IllegalArgumentException("Sample fraction must be positive and the sweep interval at least 1");
+        }
+        this.sampleFraction = sampleFraction;
+        this.fullSweepInterval = fullSweepInterval;
+    }
+
+    public void disableImportanceSampling() {
+        this.sampleFraction = 0;
+        this.fullSweepInterval = 0;
+    }
+
+    /**
+     * Collapses items that resolve to the same (materials, complexity, target) into single weighted examples
+     * before training, so each epoch costs one update per distinct example instead of one per recipe.
+     */
+    public void setCompactDataset(boolean compactDataset) {
+        this.compactDataset = compactDataset;
+    }
+
+    /**
+     * Restricts {@link #train} to one shard of the items, for data-parallel training. Items are assigned by
+     * the hash of their id so every process computes the same split.
+     * @param shardIndex This trainer's shard, 0 based
+     * @param shardCount Total number of shards
+     */
+    public void setItemShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("Invalid shard " + shardIndex + " of " + shardCount);
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Resolves every item into a training example, dropping items without base materials.
+     * @return The examples, or null if the deadline passed before they were all built
+     */
+    private List<TrainingExample> buildExamples(Collection<String> items, long deadline, TrainingReport report) {
+        long start = System.nanoTime();
+        Map<String, Map<String, Integer>> resolved = new LinkedHashMap<>();
+        boolean outOfTime = false;
+        for (String item : items) {
+            if (System.nanoTime() >= deadline) {
+                outOfTime = true;
+                break;
+            }
+            try {
+                Map<String, Integer> baseMaterials = recipeParser.resolveBaseMaterials(item);
+                if (!baseMaterials.isEmpty()) {
+                    resolved.put(item, baseMaterials);
+                }
+            } catch (Exception e) {
+                System.err.println("Error resolving item " + item + ": " + e.getMessage());
+            }
+        }
+        long resolvedAt = System.nanoTime();
+
+        List<TrainingExample> examples = new ArrayList<>(resolved.size());
+        for (Map.Entry<String, Map<String, Integer>> entry : resolved.entrySet()) {
+            if (outOfTime || System.nanoTime() >= deadline) {
+                outOfTime = true;
+                break;
+            }
+            String item = entry.getKey();
+            int complexity = recipeParser.getRecipeComplexity(item);
+            examples.add(new TrainingExample(item, entry.getValue(), complexity, calculateTargetWeight(entry.getValue(), complexity)));
+        }
+
+        List<TrainingExample> result = examples;
+        if (outOfTime) {
+            result = null;
+        } else if (compactDataset) {
+            result = TrainingExample.compact(examples);
+            System.out.printf("Compacted %d items into %d distinct examples%n", examples.size(), result.size());
+        }
+        if (report != null) {
+            report.resolveNanos += resolvedAt - start;
+            report.targetNanos += System.nanoTime() - resolvedAt;
+        }
+        return result;
+    }
+
     public void train(int epochs, double learningRate) {
+        runTraining(epochs, learningRate, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Anytime training: trains until the wall-clock budget runs out, checking it between mini-batches and while
+     * building examples, keeps the weights of the full-sweep epoch with the lowest model1 training error, puts
+     * those back into the models and exports them with {@link #saveTrainedData()}. The export runs after the
+     * budget, its time is reported.
+     * @param budget Time allowed for resolving, target computation and epochs
+     * @param learningRate Learning rate passed to the models
+     * @return How the budget was spent
+     */
+    public TrainingReport trainWithBudget(Duration budget, double learningRate) throws IOException {
+        TrainingReport report = new TrainingReport();
+        report.budgetNanos = budget.toNanos();
+        long deadline = System.nanoTime() + report.budgetNanos;
+        runTraining(Integer.MAX_VALUE, learningRate, deadline, report);
+
+        long exportStart = System.nanoTime();
+        saveTrainedData();
+        report.exportNanos = System.nanoTime() - exportStart;
+        report.print();
+        return report;
+    }
+
+    private void runTraining(int epochs, double learningRate, long deadline, TrainingReport report) {
+        long setupStart = System.nanoTime();
         Set<String> items = new HashSet<>(recipeParser.getRecipes());
+        if (shardCount > 1) {
+            items.removeIf(item -> Math.floorMod(item.hashCode(), shardCount) != shardIndex);
+        }
         if (items.isEmpty()) {
             System.out.println("Warning: No recipes found for training");
             return;
         }
         
         System.out.println("Starting training with " + items.size() + " recipes");
-        List<String> itemList = new ArrayList<>(items);
+        recipeParser.refreshRecipeSelection();
+        List<String> materials = report != null ? new ArrayList<>(recipeParser.getBaseMaterials()) : null;
+        if (report != null) {
+            // Recipe selection counts towards resolving
+            report.resolveNanos += System.nanoTime() - setupStart;
+        }
+        List<TrainingExample> examples = buildExamples(items, deadline, report);
+        ImportanceSampler sampler = null;
+        Map<String, TrainingExample> examplesByItem = new HashMap<>();
+        int sampleSize = 0;
+        long updates = 0;
+        Map<String, Double> bestWeights = null;
+        boolean outOfTime = examples == null || System.nanoTime() >= deadline;
+        int epoch = 0;
         
-        for (int epoch = 0; epoch < epochs; epoch++) {
-            Collections.shuffle(itemList, random);
+        for (; epoch < epochs && !outOfTime; epoch++) {
+            // Weights moved enough that a different recipe may now be the cheapest way to make an item
+            long selectionStart = System.nanoTime();
+            boolean selectionChanged = recipeParser.refreshRecipeSelection();
+            if (report != null) {
+                report.resolveNanos += System.nanoTime() - selectionStart;
+            }
+            if (selectionChanged) {
+                System.out.println("Recipe selection changed at epoch " + epoch);
+                examples = System.nanoTime() < deadline ? buildExamples(items, deadline, report) : null;
+                if (examples == null) {
+                    outOfTime = true;
+                    break;
+                }
+                sampler = null;
+            }
+            long epochStart = System.nanoTime();
+            if (sampler == null && fullSweepInterval > 0) {
+                List<String> names = new ArrayList<>(examples.size());
+                examplesByItem.clear();
+                for (TrainingExample example : examples) {
+                    names.add(example.item);
+                    examplesByItem.put(example.item, example);
+                }
+                sampler = new ImportanceSampler(names, MAX_TARGET_WEIGHT);
+                sampleSize = (int) Math.ceil(sampleFraction * examples.size());
+            }
+
+            List<TrainingExample> epochExamples;
+            boolean sampled = sampler != null && epoch % fullSweepInterval != 0;
+            if (sampled) {
+                epochExamples = new ArrayList<>(sampleSize);
+                for (String item : sampler.draw(sampleSize, random)) {
+                    epochExamples.add(examplesByItem.get(item));
+                }
+            } else {
+                Collections.shuffle(examples, random);
+                epochExamples = examples;
+            }
             int validItems = 0;
             double totalError1 = 0.0;
             double totalError2 = 0.0;
+            int batchPosition = 0;
             
-            for (String item : itemList) {
-                try {
-                    Map<String, Integer> baseMaterials = recipeParser.resolveBaseMaterials(item);
-                    if (baseMaterials.isEmpty()) {
-                        continue;
+            for (TrainingExample example : epochExamples) {
+                if (++batchPosition == MINI_BATCH_SIZE) {
+                    batchPosition = 0;
+                    if (report != null) {
+                        report.batches++;
                     }
-                    
-                    int complexity = recipeParser.getRecipeComplexity(item);
-                    double targetWeight = calculateTargetWeight(baseMaterials, complexity);
+                    if (System.nanoTime() >= deadline) {
+                        outOfTime = true;
+                        break;
+                    }
+                }
+                try {
+                    Map<String, Integer> baseMaterials = example.baseMaterials;
+                    int complexity = example.complexity;
+                    double targetWeight = example.target;
+                    int multiplicity = example.multiplicity;
                     
                     // Train model1
+                    double itemError = 0.0;
+                    int predicted = 0;
                     double prediction1 = model1.predictWeight(baseMaterials, complexity);
                     if (!Double.isNaN(prediction1)) {
                         double error1 = targetWeight - prediction1;
-                        model1.updateWeights(baseMaterials, complexity, error1, learningRate);
-                        totalError1 += Math.abs(error1);
-                        validItems++;
+                        model1.updateWeights(baseMaterials, complexity, error1, learningRate, multiplicity);
+                        totalError1 += Math.abs(error1) * multiplicity;
+                        itemError += Math.abs(error1);
+                        predicted++;
+                        validItems += multiplicity;
                     }
                     
                     // Train model2
                     double prediction2 = model2.predictWeight(baseMaterials, complexity);
                     if (!Double.isNaN(prediction2)) {
                         double error2 = targetWeight - prediction2;
-                        model2.updateWeights(baseMaterials, complexity, error2, learningRate);
-                        totalError2 += Math.abs(error2);
+                        model2.updateWeights(baseMaterials, complexity, error2, learningRate, multiplicity);
+                        totalError2 += Math.abs(error2) * multiplicity;
+                        itemError += Math.abs(error2);
+                        predicted++;
+                    }
+                    updates++;
+
+                    if (sampler != null && predicted > 0) {
+                        // Priority is the mean error this example contributes, duplicates included
+                        sampler.update(example.item, itemError / predicted * multiplicity);
                     }
                     
                 } catch (Exception e) {
-                    System.err.println("Error training on item " + item + ": " + e.getMessage());
+                    System.err.println("Error training on item " + example.item + ": " + e.getMessage());
+                }
+            }
+            if (!outOfTime) {
+                if (report != null) {
+                    report.epochsCompleted++;
+                    // Keep the best complete full sweep, a partial or importance-sampled epoch measures a different
+                    // set of items and is not comparable. The error was measured on the weights as they are now,
+                    // before batch optimizers step in endEpoch, so snapshot those.
+                    double error = validItems > 0 ? totalError1 / validItems : Double.MAX_VALUE;
+                    if (!sampled && error < report.bestError) {
+                        report.bestError = error;
+                        report.bestEpoch = epoch;
+                        // Without a way to restore them, a model keeps its last weights
+                        if (model1.supportsParameters() || model2.supportsParameters()) {
+                            bestWeights = readParameters(materials, model1, model2);
+                        }
+                    }
                 }
+                model1.endEpoch(deadline);
+                model2.endEpoch(deadline);
+                publishSharedWeights();
+            }
+            if (report != null) {
+                report.epochNanos += System.nanoTime() - epochStart;
+            }
+            if (System.nanoTime() >= deadline) {
+                outOfTime = true;
             }
             
             if (validItems == 0) {
@@ -171,6 +450,17 @@ public class Trainer {
             }
         }
 
+        if (report != null) {
+            report.budgetExhausted = outOfTime;
+            report.overrunNanos = Math.max(0, System.nanoTime() - deadline);
+            if (bestWeights != null) {
+                applyParameters(bestWeights, model1, model2);
+                publishSharedWeights();
+            }
+        }
+        System.out.printf("Training made %d example updates (one per item per epoch would be %d)%n",
+            updates, (long) epoch * items.size());
+
         // Output final trained weights
         System.out.println("\nFinal Trained Weights:");
         System.out.println("Gradient Descent Model Weights:");
@@ -179,6 +469,43 @@ public class Trainer {
         model2.printWeights();
     }
 
+    /**
+     * Flattens the parameters of both models ({@link MLModel#getParameters}) into one map, keys prefixed with the model.
+     */
+    static Map<String, Double> readParameters(List<String> materials, MLModel model1, MLModel model2) {
+        Map<String, Double> parameters = new HashMap<>();
+        model1.getParameters(materials).forEach((name, value) -> parameters.put("model1/" + name, value));
+        model2.getParameters(materials).forEach((name, value) -> parameters.put("model2/" + name, value));
+        return parameters;
+    }
+
+    /**
+     * Writes parameters produced by {@link #readParameters} (or a subset of them) back into the models.
+     */
+    static void applyParameters(Map<String, Double> parameters, MLModel model1, MLModel model2) {
+        Map<String, Double> parameters1 = new HashMap<>();
+        Map<String, Double> parameters2 = new HashMap<>();
+        for (Map.Entry<String, Double> entry : parameters.entrySet()) {
+            String key = entry.getKey();
+            Map<String, Double> target = key.startsWith("model1/") ? parameters1 : parameters2;
+            target.put(key.substring("model1/".length()), entry.getValue());
+        }
+        model1.setParameters(parameters1);
+        model2.setParameters(parameters2);
+    }
+
+    /**
+     * Retained heap of the recipe data and both models.
+     * @param mode {@link MemoryFootprint.Mode#ESTIMATE} is cheap enough to run after every load, EXACT walks everything
+     */
+    public MemoryFootprint footprint(MemoryFootprint.Mode mode) {
+        MemoryFootprint footprint = new MemoryFootprint(mode);
+        recipeParser.addFootprint(footprint);
+        model1.addFootprint(footprint, "model1");
+        model2.addFootprint(footprint, "model2");
+        return footprint;
+    }
+
     public double evaluate() {
         Set<String> items = new HashSet<>(recipeParser.getRecipes());
         if (items.isEmpty()) {
@@ -239,27 +566,86 @@ public class Trainer {
         JsonObject items = new JsonObject();
 
         // Add base material weights
+        savedMaterialWeights = new HashMap<>();
         for (String material : recipeParser.getBaseMaterials()) {
+            double weight = model1.getMaterialWeight(material);
             JsonObject materialData = new JsonObject();
-            materialData.addProperty("weight", model1.predictWeight(Map.of(material, 1), 0));
+            materialData.addProperty("weight", weight);
             baseMaterials.add(material, materialData);
+            savedMaterialWeights.put(material, weight);
         }
         output.add("base_materials", baseMaterials);
 
-        // Add item weights
+        // Add item weights, priced in one batch
+        List<String> pricedItems = new ArrayList<>();
+        PackedBatch.Builder batch = PackedBatch.builder();
         for (String item : recipeItems) {
             Map<String, Integer> itemBaseMaterials = recipeParser.resolveBaseMaterials(item);
             if (!itemBaseMaterials.isEmpty()) {
-                int complexity = recipeParser.getRecipeComplexity(item);
-                double weight = model1.predictWeight(itemBaseMaterials, complexity);
-                
-                JsonObject itemData = new JsonObject();
-                itemData.addProperty("weight", weight);
-                items.add(item, itemData);
+                pricedItems.add(item);
+                batch.add(itemBaseMaterials, recipeParser.getRecipeComplexity(item));
+            }
+        }
+        double[] weights = model1.predictWeights(batch.build());
+        savedItemWeights = new HashMap<>();
+        for (int i = 0; i < weights.length; i++) {
+            JsonObject itemData = new JsonObject();
+            itemData.addProperty("weight", weights[i]);
+            items.add(pricedItems.get(i), itemData);
+            savedItemWeights.put(pricedItems.get(i), weights[i]);
+        }
+        output.add("items", items);
+        savedModId = modId;
+        savedComplexityWeight = model1.getComplexityWeight();
+        savedResolutionVersion = recipeParser.getResolutionVersion();
+
+        writeWeightsJson(output, outputFile);
+    }
+
+    /**
+     * Writes only the base materials and items whose weight changed since the last full {@link #saveTrainedData()}
+     * to {@code <modId>_weights_delta.json}, in the same layout. The delta is cumulative: each call overwrites the
+     * previous one, and applying the latest on top of {@code <modId>_weights.json} gives the current weights.
+     * Affected items are found through the parser's reverse index, so the cost tracks the size of the change
+     * rather than the pack. Falls back to a full save if nothing was saved yet, model1 is not linear, the
+     * complexity weight moved or recipe resolutions changed.
+     */
+    public void saveTrainedDataDelta() throws IOException {
+        if (savedItemWeights == null || !model1.isLinear() || savedComplexityWeight != model1.getComplexityWeight()
+                || savedResolutionVersion != recipeParser.getResolutionVersion()) {
+            saveTrainedData();
+            return;
+        }
+
+        Map<String, Double> materialDeltas = new HashMap<>();
+        JsonObject baseMaterials = new JsonObject();
+        for (Map.Entry<String, Double> entry : savedMaterialWeights.entrySet()) {
+            double weight = model1.getMaterialWeight(entry.getKey());
+            if (weight != entry.getValue()) {
+                materialDeltas.put(entry.getKey(), weight - entry.getValue());
+                JsonObject materialData = new JsonObject();
+                materialData.addProperty("weight", weight);
+                baseMaterials.add(entry.getKey(), materialData);
             }
         }
+
+        JsonObject items = new JsonObject();
+        Map<String, Double> changedItems = recipeParser.repriceAffected(materialDeltas, savedComplexityWeight, savedItemWeights);
+        for (Map.Entry<String, Double> entry : changedItems.entrySet()) {
+            JsonObject itemData = new JsonObject();
+            itemData.addProperty("weight", entry.getValue());
+            items.add(entry.getKey(), itemData);
+        }
+
+        JsonObject output = new JsonObject();
+        output.add("base_materials", baseMaterials);
         output.add("items", items);
+        // Same mod id as the full save this delta applies to
+        writeWeightsJson(output, savedModId + "_weights_delta.json");
+        System.out.printf("Delta: %d base materials, %d items changed%n", materialDeltas.size(), changedItems.size());
+    }
 
+    private void writeWeightsJson(JsonObject output, String outputFile) throws IOException {
         // Write to file with pretty printing
         Gson gson = new Gson();
         String json = gson.toJson(output);
@@ -0,0 +1,69 @@
+package net.superscary.himl.trainer;
+
+import java.util.*;
+
+/**
+ * One resolved training example: an item's base materials, complexity and target weight.
+ * <p>
+ * After {@link #compact} an example can stand for several items that resolve to exactly the same
+ * tuple (the dyed variants of wool, beds, glass, concrete...). {@code multiplicity} counts them and
+ * the trainer scales the example's gradient by it, so one update does the work of all duplicates.
+ */
+class TrainingExample {
+    final String item;
+    final Map<String, Integer> baseMaterials;
+    final int complexity;
+    final double target;
+    int multiplicity;
+
+    TrainingExample(String item, Map<String, Integer> baseMaterials, int complexity, double target) {
+        this.item = item;
+        this.baseMaterials = baseMaterials;
+        this.complexity = complexity;
+        this.target = target;
+        this.multiplicity = 1;
+    }
+
+    /**
+     * Collapses examples with identical (materials, complexity, target) into one weighted example.
+     * The first item of each group (in input order) names the merged example.
+     */
+    static List<TrainingExample> compact(List<TrainingExample> examples) {
+        Map<Key, TrainingExample> unique = new LinkedHashMap<>();
+        for (TrainingExample example : examples) {
+            TrainingExample existing = unique.putIfAbsent(new Key(example), example);
+            if (existing != null) {
+                existing.multiplicity += example.multiplicity;
+            }
+        }
+        return new ArrayList<>(unique.values());
+    }
+
+    private static final class Key {
+        private final Map<String, Integer> baseMaterials;
+        private final int complexity;
+        private final long targetBits;
+        private final int hash;
+
+        Key(TrainingExample example) {
+            this.baseMaterials = example.baseMaterials;
+            this.complexity = example.complexity;
+            this.targetBits = Double.doubleToLongBits(example.target);
+            this.hash = Objects.hash(baseMaterials, complexity, targetBits);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && complexity == other.complexity && targetBits == other.targetBits
+                && baseMaterials.equals(other.baseMaterials);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.superscary.himl.trainer;
+
+/**
+ * Where the time of a budgeted training run went, filled in by {@link Trainer#trainWithBudget}.
+ */
+public class TrainingReport {
+    long budgetNanos;
+    long resolveNanos;
+    long targetNanos;
+    long epochNanos;
+    long exportNanos;
+    int epochsCompleted;
+    long batches;
+    int bestEpoch = -1;
+    double bestError = Double.MAX_VALUE;
+    boolean budgetExhausted;
+    long overrunNanos;
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    public long getResolveNanos() {
+        return resolveNanos;
+    }
+
+    public long getTargetNanos() {
+        return targetNanos;
+    }
+
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public long getExportNanos() {
+        return exportNanos;
+    }
+
+    public int getEpochsCompleted() {
+        return epochsCompleted;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * The full-sweep epoch whose weights were kept, -1 if none completed.
+     */
+    public int getBestEpoch() {
+        return bestEpoch;
+    }
+
+    /**
+     * Average model1 training error of the kept epoch.
+     */
+    public double getBestError() {
+        return bestError;
+    }
+
+    public boolean isBudgetExhausted() {
+        return budgetExhausted;
+    }
+
+    /**
+     * How far training ran past the deadline, 0 if it stopped in time. Does not include the export.
+     */
+    public long getOverrunNanos() {
+        return overrunNanos;
+    }
+
+    public void print() {
+        System.out.printf("Training budget %.2fs (%s)%n", budgetNanos / 1e9,
+            budgetExhausted ? "exhausted" : "finished early");
+        printPhase("resolve", resolveNanos);
+        printPhase("targets", targetNanos);
+        printPhase("epochs", epochNanos);
+        printPhase("export", exportNanos);
+        if (overrunNanos > 0) {
+            System.out.printf("  overran the deadline by %.3fs%n", overrunNanos / 1e9);
+        }
+        if (bestEpoch >= 0) {
+            System.out.printf("  %d epochs, %d mini-batches, kept epoch %d (error %.4f)%n",
+                epochsCompleted, batches, bestEpoch, bestError);
+        } else {
+            System.out.printf("  no complete full sweep within the budget, %d mini-batches%n", batches);
+        }
+    }
+
+    private void printPhase(String name, long nanos) {
+        System.out.printf("  %-8s %8.3fs %6.1f%%%n", name, nanos / 1e9, 100.0 * nanos / budgetNanos);
+    }
+}
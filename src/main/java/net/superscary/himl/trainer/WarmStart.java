@@ -0,0 +1,200 @@
+package net.superscary.himl.trainer;
+
+import net.superscary.himl.model.MLModel;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Seeds material weights from weight files exported for other packs ({@code <modId>_weights.json}), so
+ * training starts from what is already known about shared materials instead of 1.0 everywhere.
+ * <p>
+ * Each source has a confidence in (0, 1]. For a material, the estimates of all sources that know it are
+ * averaged in log space (weights are scale factors), weighted by confidence. An id found only among a
+ * source's items counts at half confidence, since those weights are predictions. The combined confidence is
+ * the chance that at least one source is right, {@code 1 - prod(1 - c)}, scaled down by the sources'
+ * disagreement, {@code exp(-variance of log weights)}. The model's current weight is then moved that far
+ * towards the estimate (again in log space): a confident, consistent prior replaces it, a weak one only nudges it.
+ */
+public class WarmStart {
+    private static final double ITEM_CONFIDENCE = 0.5;
+    private static final double MIN_CONFIDENCE = 0.05;
+    private static final int TOP_DISAGREEMENTS = 10;
+
+    private final List<Source> sources = new ArrayList<>();
+
+    private static final class Source {
+        private final String name;
+        private final double confidence;
+        private final Map<String, Double> materials;
+        private final Map<String, Double> items;
+
+        Source(String name, double confidence, Map<String, Double> materials, Map<String, Double> items) {
+            this.name = name;
+            this.confidence = confidence;
+            this.materials = materials;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Adds an exported weight file.
+     * @param weightsFile A file written by {@link Trainer#saveTrainedData()}
+     * @param confidence How far to trust it, in (0, 1]
+     */
+    public void addSource(Path weightsFile, double confidence) throws IOException {
+        if (!(confidence > 0.0 && confidence <= 1.0)) {
+            throw new IllegalArgumentException("Confidence must be in (0, 1], got " + confidence);
+        }
+        JsonObject root;
+        try (Reader reader = Files.newBufferedReader(weightsFile, StandardCharsets.UTF_8)) {
+            root = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        sources.add(new Source(weightsFile.getFileName().toString(), confidence,
+            readWeights(root.getAsJsonObject("base_materials")), readWeights(root.getAsJsonObject("items"))));
+    }
+
+    /**
+     * Adds sources given as {@code file[@confidence]}, comma separated. Confidence defaults to 1.
+     */
+    public void addSources(String spec) throws IOException {
+        for (String part : spec.split(",")) {
+            String file = part.trim();
+            double confidence = 1.0;
+            int at = file.lastIndexOf('@');
+            if (at > 0) {
+                confidence = Double.parseDouble(file.substring(at + 1));
+                file = file.substring(0, at);
+            }
+            if (!file.isEmpty()) {
+                addSource(Paths.get(file), confidence);
+            }
+        }
+    }
+
+    private static Map<String, Double> readWeights(JsonObject section) {
+        Map<String, Double> weights = new HashMap<>();
+        if (section == null) {
+            return weights;
+        }
+        for (Map.Entry<String, JsonElement> entry : section.entrySet()) {
+            JsonElement weight = entry.getValue().isJsonObject() ? entry.getValue().getAsJsonObject().get("weight") : null;
+            if (weight != null && weight.isJsonPrimitive()) {
+                double value = weight.getAsDouble();
+                if (value > 0.0 && !Double.isInfinite(value)) {
+                    weights.put(entry.getKey(), value);
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Blends the sources into the given models' weights with {@link MLModel#setMaterialWeight}. Models that
+     * do not {@link MLModel#supportsParameters() support it} are left alone.
+     * @param materials The base materials of the pack being trained
+     * @param models Models whose weights to seed, already initialised
+     * @return What was covered
+     */
+    public WarmStartReport seed(Collection<String> materials, MLModel... models) {
+        List<MLModel> seedable = new ArrayList<>();
+        for (MLModel model : models) {
+            if (model.supportsParameters()) {
+                seedable.add(model);
+            } else {
+                System.err.println("Warm start: " + model.getClass().getSimpleName() + " cannot set weights, not seeding it");
+            }
+        }
+        WarmStartReport report = new WarmStartReport();
+        for (Source source : sources) {
+            report.sourceHits.put(source.name, 0);
+        }
+        PriorityQueue<Map.Entry<String, double[]>> disagreements =
+            new PriorityQueue<>(Comparator.comparingDouble(entry -> entry.getValue()[1] / entry.getValue()[0]));
+
+        for (String material : new TreeSet<>(materials)) {
+            report.materials++;
+            int[] namespace = report.namespaces.computeIfAbsent(namespace(material), k -> new int[2]);
+            namespace[0]++;
+
+            double totalConfidence = 0.0;
+            double logSum = 0.0;
+            double missProbability = 1.0;
+            double min = Double.MAX_VALUE;
+            double max = 0.0;
+            boolean fromItems = false;
+            List<double[]> estimates = new ArrayList<>();
+            for (Source source : sources) {
+                Double weight = source.materials.get(material);
+                double confidence = source.confidence;
+                if (weight == null) {
+                    weight = source.items.get(material);
+                    confidence *= ITEM_CONFIDENCE;
+                    if (weight == null) {
+                        continue;
+                    }
+                    fromItems = true;
+                }
+                report.sourceHits.merge(source.name, 1, Integer::sum);
+                estimates.add(new double[] {Math.log(weight), confidence});
+                totalConfidence += confidence;
+                logSum += confidence * Math.log(weight);
+                missProbability *= 1.0 - confidence;
+                min = Math.min(min, weight);
+                max = Math.max(max, weight);
+            }
+            if (estimates.isEmpty()) {
+                continue;
+            }
+
+            double mean = logSum / totalConfidence;
+            double variance = 0.0;
+            for (double[] estimate : estimates) {
+                variance += estimate[1] * (estimate[0] - mean) * (estimate[0] - mean);
+            }
+            variance /= totalConfidence;
+            double confidence = (1.0 - missProbability) * Math.exp(-variance);
+            if (estimates.size() > 1 && max > min) {
+                disagreements.add(Map.entry(material, new double[] {min, max}));
+                if (disagreements.size() > TOP_DISAGREEMENTS) {
+                    disagreements.poll();
+                }
+            }
+            if (confidence < MIN_CONFIDENCE) {
+                report.lowConfidence++;
+                continue;
+            }
+
+            for (MLModel model : seedable) {
+                double current = Math.max(model.getMaterialWeight(material), Double.MIN_NORMAL);
+                model.setMaterialWeight(material, Math.exp(confidence * mean + (1.0 - confidence) * Math.log(current)));
+            }
+            report.seeded++;
+            report.confidenceSum += confidence;
+            if (fromItems) {
+                report.fromItems++;
+            }
+            namespace[1]++;
+        }
+
+        List<Map.Entry<String, double[]>> largest = new ArrayList<>(disagreements);
+        largest.sort(Comparator.comparingDouble(entry -> -entry.getValue()[1] / entry.getValue()[0]));
+        for (Map.Entry<String, double[]> entry : largest) {
+            report.disagreements.put(entry.getKey(), entry.getValue());
+        }
+        return report;
+    }
+
+    private static String namespace(String id) {
+        int colon = id.indexOf(':');
+        return colon > 0 ? id.substring(0, colon) : "(none)";
+    }
+}
@@ -0,0 +1,71 @@
+package net.superscary.himl.trainer;
+
+import java.util.*;
+
+/**
+ * Coverage of a {@link WarmStart#seed} run: how many of the pack's materials got a prior, from which
+ * sources, per namespace, and where the sources disagreed most.
+ */
+public class WarmStartReport {
+    int materials;
+    int seeded;
+    int fromItems;
+    int lowConfidence;
+    double confidenceSum;
+    final Map<String, Integer> sourceHits = new LinkedHashMap<>();
+    // namespace -> {materials, seeded}
+    final Map<String, int[]> namespaces = new TreeMap<>();
+    // material -> {lowest, highest} weight among the sources, largest ratio first
+    final Map<String, double[]> disagreements = new LinkedHashMap<>();
+
+    public int getMaterials() {
+        return materials;
+    }
+
+    public int getSeeded() {
+        return seeded;
+    }
+
+    /**
+     * Seeded materials whose estimate came at least partly from another pack's item weights.
+     */
+    public int getSeededFromItems() {
+        return fromItems;
+    }
+
+    /**
+     * Materials the sources knew but disagreed on too much to use.
+     */
+    public int getLowConfidence() {
+        return lowConfidence;
+    }
+
+    public double getCoverage() {
+        return materials == 0 ? 0.0 : (double) seeded / materials;
+    }
+
+    public double getMeanConfidence() {
+        return seeded == 0 ? 0.0 : confidenceSum / seeded;
+    }
+
+    public Map<String, Integer> getSourceHits() {
+        return Collections.unmodifiableMap(sourceHits);
+    }
+
+    public void print() {
+        System.out.printf("Warm start: seeded %d of %d materials (%.1f%%), mean confidence %.2f%n",
+            seeded, materials, 100.0 * getCoverage(), getMeanConfidence());
+        if (fromItems > 0 || lowConfidence > 0) {
+            System.out.printf("  %d from item weights, %d skipped for low confidence%n", fromItems, lowConfidence);
+        }
+        sourceHits.forEach((source, hits) -> System.out.printf("  %-32s %6d materials%n", source, hits));
+        System.out.println("  Coverage by namespace:");
+        namespaces.forEach((namespace, counts) -> System.out.printf("    %-30s %6d / %-6d (%.1f%%)%n",
+            namespace, counts[1], counts[0], 100.0 * counts[1] / counts[0]));
+        if (!disagreements.isEmpty()) {
+            System.out.println("  Largest disagreements between sources:");
+            disagreements.forEach((material, range) -> System.out.printf("    %-30s %.4f .. %.4f%n",
+                material, range[0], range[1]));
+        }
+    }
+}
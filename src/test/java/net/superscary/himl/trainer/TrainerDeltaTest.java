@@ -0,0 +1,87 @@
+package net.superscary.himl.trainer;
+
+import net.superscary.himl.model.MLModel;
+import net.superscary.himl.model.MLModelFactory;
+import net.superscary.himl.parser.RecipeParser;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrainerDeltaTest {
+    private static final String RECIPES = "["
+        + "{\"itemName\":\"deltatest:sword\",\"type\":\"minecraft:crafting_shapeless\",\"ingredients\":[{\"item\":\"iron\"},{\"item\":\"iron\"},{\"item\":\"stick\"}]},"
+        + "{\"itemName\":\"deltatest:torch\",\"type\":\"minecraft:crafting_shapeless\",\"ingredients\":[{\"item\":\"coal\"},{\"item\":\"stick\"}]},"
+        + "{\"itemName\":\"deltatest:ring\",\"type\":\"minecraft:crafting_shapeless\",\"ingredients\":[{\"item\":\"diamond\"},{\"item\":\"iron\"}]}"
+        + "]";
+    private static final Path FULL = Paths.get("deltatest_weights.json");
+    private static final Path DELTA = Paths.get("deltatest_weights_delta.json");
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        Files.deleteIfExists(FULL);
+        Files.deleteIfExists(DELTA);
+    }
+
+    @Test
+    void chainedDeltasApplyOnTopOfTheFullSave() throws IOException {
+        Path recipes = dir.resolve("recipes.json");
+        Files.writeString(recipes, RECIPES);
+        MLModel model1 = MLModelFactory.createModel("gradient", 0.01);
+        MLModel model2 = MLModelFactory.createModel("adam", 0.01);
+        RecipeParser parser = new RecipeParser(model1);
+        parser.loadRecipes(recipes.toString(), false);
+        for (String material : parser.getBaseMaterials()) {
+            model1.initializeBaseMaterial(material);
+            model2.initializeBaseMaterial(material);
+        }
+        Trainer trainer = new Trainer(model1, model2, parser);
+        trainer.saveTrainedData();
+
+        model1.setMaterialWeight("diamond", model1.getMaterialWeight("diamond") * 1.5);
+        trainer.saveTrainedDataDelta();
+        model1.setMaterialWeight("coal", model1.getMaterialWeight("coal") * 0.5);
+        trainer.saveTrainedDataDelta();
+
+        JsonObject delta = read(DELTA);
+        assertTrue(delta.getAsJsonObject("base_materials").has("diamond"), "first change dropped by the second delta");
+        assertTrue(delta.getAsJsonObject("items").has("deltatest:ring"), "first change dropped by the second delta");
+
+        Map<String, Double> materials = weights(read(FULL), "base_materials");
+        materials.putAll(weights(delta, "base_materials"));
+        Map<String, Double> items = weights(read(FULL), "items");
+        items.putAll(weights(delta, "items"));
+
+        for (String material : parser.getBaseMaterials()) {
+            assertEquals(model1.getMaterialWeight(material), materials.get(material), 1e-9, material);
+        }
+        for (String item : parser.getRecipes()) {
+            double expected = model1.predictWeight(parser.resolveBaseMaterials(item), parser.getRecipeComplexity(item));
+            assertEquals(expected, items.get(item), 1e-9, item);
+        }
+    }
+
+    private static JsonObject read(Path file) throws IOException {
+        return JsonParser.parseString(Files.readString(file)).getAsJsonObject();
+    }
+
+    private static Map<String, Double> weights(JsonObject output, String section) {
+        Map<String, Double> weights = new HashMap<>();
+        output.getAsJsonObject(section).entrySet().forEach(entry ->
+            weights.put(entry.getKey(), entry.getValue().getAsJsonObject().get("weight").getAsDouble()));
+        return weights;
+    }
+}